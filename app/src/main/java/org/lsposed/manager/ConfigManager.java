@@ -29,6 +29,10 @@ import android.util.Log;
 
 import org.lsposed.lspd.ILSPManagerService;
 import org.lsposed.lspd.models.Application;
+import org.lsposed.lspd.models.HookStats;
+import org.lsposed.lspd.models.InstalledApps;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
 import org.lsposed.lspd.models.UserInfo;
 import org.lsposed.manager.adapters.ScopeAdapter;
 import org.lsposed.manager.receivers.LSPManagerServiceHolder;
@@ -72,14 +76,23 @@ public class ConfigManager {
         }
     }
 
-    public static List<PackageInfo> getInstalledPackagesFromAllUsers(int flags, boolean filterNoProcess) {
-        List<PackageInfo> list = new ArrayList<>();
+    // pages of the packages of all users, empty if the list could not be fetched completely
+    public static List<InstalledApps> getInstalledApps() {
+        List<InstalledApps> pages = new ArrayList<>();
         try {
-            list.addAll(LSPManagerServiceHolder.getService().getInstalledPackagesFromAllUsers(flags, filterNoProcess).getList());
+            var page = LSPManagerServiceHolder.getService().getInstalledApps(0, 0);
+            pages.add(page);
+            while (page.next != -1) {
+                page = LSPManagerServiceHolder.getService().getInstalledApps(page.generation, page.next);
+                // the list was dropped by the daemon and has been cut again from the start
+                if (page.offset == 0) pages.clear();
+                pages.add(page);
+            }
         } catch (RemoteException e) {
             Log.e(App.TAG, Log.getStackTraceString(e));
+            pages.clear();
         }
-        return list;
+        return pages;
     }
 
     public static String[] getEnabledModules() {
@@ -363,6 +376,73 @@ public class ConfigManager {
         }
     }
 
+    public static boolean isHookProfilerEnabled() {
+        try {
+            return LSPManagerServiceHolder.getService().isHookProfilerEnabled();
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return false;
+        }
+    }
+
+    public static boolean setHookProfilerEnabled(boolean enabled) {
+        try {
+            LSPManagerServiceHolder.getService().setHookProfilerEnabled(enabled);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return false;
+        }
+    }
+
+    public static List<HookStats> getHookStats() {
+        List<HookStats> list = new ArrayList<>();
+        try {
+            list.addAll(LSPManagerServiceHolder.getService().getHookStats());
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+        }
+        return list;
+    }
+
+    public static boolean isModuleAotEnabled() {
+        try {
+            return LSPManagerServiceHolder.getService().isModuleAotEnabled();
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return false;
+        }
+    }
+
+    public static boolean setModuleAotEnabled(boolean enabled) {
+        try {
+            LSPManagerServiceHolder.getService().setModuleAotEnabled(enabled);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return false;
+        }
+    }
+
+    public static List<ModuleStartupStats> getModuleStartupStats() {
+        List<ModuleStartupStats> list = new ArrayList<>();
+        try {
+            list.addAll(LSPManagerServiceHolder.getService().getModuleStartupStats());
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+        }
+        return list;
+    }
+
+    public static ReflectionCacheStats getReflectionCacheStats() {
+        try {
+            return LSPManagerServiceHolder.getService().getReflectionCacheStats();
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return null;
+        }
+    }
+
     public static int getDex2OatWrapperCompatibility() {
         try {
             return LSPManagerServiceHolder.getService().getDex2OatWrapperCompatibility();
@@ -27,14 +27,18 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.os.Build;
 import android.os.Parcel;
 import android.view.MenuItem;
 
+import org.lsposed.lspd.models.InstalledApps;
 import org.lsposed.manager.ConfigManager;
 import org.lsposed.manager.R;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -135,7 +139,18 @@ public class AppHelper {
 
     synchronized public static List<PackageInfo> getAppList(boolean force) {
         if (appList == null || force) {
-            appList = ConfigManager.getInstalledPackagesFromAllUsers(PackageManager.GET_META_DATA | PackageManager.MATCH_UNINSTALLED_PACKAGES, true);
+            appList = new ArrayList<>();
+            var applications = new HashMap<String, ApplicationInfo>();
+            for (var page : ConfigManager.getInstalledApps()) {
+                for (int i = 0; i < page.packageNames.length; i++) {
+                    if (page.applicationInfos[i] != null) {
+                        applications.put(page.packageNames[i], page.applicationInfos[i]);
+                    }
+                    if (page.processes[i]) {
+                        appList.add(toPackageInfo(page, i, applications.get(page.packageNames[i])));
+                    }
+                }
+            }
             PackageInfo system = null;
             for (var app : appList) {
                 if ("android".equals(app.packageName)) {
@@ -155,6 +170,25 @@ public class AppHelper {
         return appList;
     }
 
+    // a package info with only the fields the lists use, built from a row of the slim app list
+    @SuppressWarnings("deprecation")
+    public static PackageInfo toPackageInfo(InstalledApps apps, int row, ApplicationInfo application) {
+        var info = new PackageInfo();
+        info.packageName = apps.packageNames[row];
+        info.versionName = apps.versionNames[row];
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            info.setLongVersionCode(apps.versionCodes[row]);
+        } else {
+            info.versionCode = (int) apps.versionCodes[row];
+        }
+        info.firstInstallTime = apps.firstInstallTimes[row];
+        info.lastUpdateTime = apps.lastUpdateTimes[row];
+        info.applicationInfo = new ApplicationInfo(application);
+        info.applicationInfo.uid = apps.uids[row];
+        info.applicationInfo.flags = apps.flags[row];
+        return info;
+    }
+
     synchronized public static List<String> getDenyList(boolean force) {
         if (denyList == null || force) {
             denyList = ConfigManager.getDenyListPackages();
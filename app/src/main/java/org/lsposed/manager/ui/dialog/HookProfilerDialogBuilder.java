@@ -0,0 +1,137 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.manager.ui.dialog;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.view.LayoutInflater;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.material.textview.MaterialTextView;
+
+import org.lsposed.lspd.models.HookStats;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
+import org.lsposed.manager.R;
+import org.lsposed.manager.databinding.DialogTitleBinding;
+import org.lsposed.manager.databinding.ScrollableDialogBinding;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+public class HookProfilerDialogBuilder extends BlurBehindDialogBuilder {
+    private static final int MAX_ROWS = 100;
+
+    public HookProfilerDialogBuilder(@NonNull Context context, List<HookStats> stats, List<ModuleStartupStats> startup,
+                                     ReflectionCacheStats cache) {
+        super(context);
+        LayoutInflater inflater = LayoutInflater.from(context);
+
+        var title = DialogTitleBinding.inflate(inflater).getRoot();
+        title.setText(R.string.settings_hook_profiler_results);
+        setCustomTitle(title);
+
+        var textView = new MaterialTextView(context);
+        textView.setTypeface(Typeface.MONOSPACE);
+        textView.setTextIsSelectable(true);
+        if (stats.isEmpty() && startup.isEmpty()) {
+            textView.setText(R.string.hook_profiler_empty);
+        } else {
+            var sb = new StringBuilder();
+            if (!startup.isEmpty()) {
+                sb.append(context.getString(R.string.hook_profiler_startup)).append("\n\n").append(formatStartup(startup));
+            }
+            if (!stats.isEmpty()) {
+                sb.append(context.getString(R.string.hook_profiler_hooks)).append("\n\n").append(format(stats));
+            }
+            if (cache != null && cache.hits + cache.misses > 0) {
+                sb.append(context.getString(R.string.hook_profiler_reflection_cache)).append("\n\n").append(format(cache));
+            }
+            textView.setText(sb);
+        }
+
+        var binding = ScrollableDialogBinding.inflate(inflater, null, false);
+        binding.dialogContainer.addView(textView);
+        var rootView = binding.getRoot();
+        setView(rootView);
+        title.setOnClickListener(v -> rootView.smoothScrollTo(0, 0));
+
+        setPositiveButton(android.R.string.ok, null);
+    }
+
+    private static long total(HookStats stats) {
+        return stats.beforeNanos + stats.afterNanos + stats.originalNanos;
+    }
+
+    // upper bound of the log2 bucket holding the given quantile
+    private static long percentile(HookStats stats, double quantile) {
+        long count = 0;
+        for (var bucket : stats.histogram) count += bucket;
+        var target = (long) Math.ceil(count * quantile);
+        long seen = 0;
+        for (int i = 0; i < stats.histogram.length; i++) {
+            seen += stats.histogram[i];
+            if (seen >= target && seen > 0) return 2L << i;
+        }
+        return 0;
+    }
+
+    private static long total(ModuleStartupStats stats) {
+        return stats.loadNanos + stats.initNanos + stats.packageLoadedNanos;
+    }
+
+    // average time per launch of each module in each process
+    private static String formatStartup(List<ModuleStartupStats> startup) {
+        var sb = new StringBuilder();
+        startup.stream().sorted(Comparator.comparingLong((ModuleStartupStats s) -> total(s) / Math.max(1, s.launches)).reversed()).limit(MAX_ROWS).forEach(s -> {
+            var launches = Math.max(1, s.launches);
+            sb.append(s.module).append(" @ ").append(s.processName).append('\n');
+            sb.append(String.format(Locale.ROOT, "  %d launches, load %.1f ms, init %.1f ms, package loaded %.1f ms%n",
+                    s.launches, s.loadNanos / 1e6 / launches, s.initNanos / 1e6 / launches, s.packageLoadedNanos / 1e6 / launches));
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static String format(ReflectionCacheStats cache) {
+        var lookups = cache.hits + cache.misses;
+        return String.format(Locale.ROOT, "%d hits, %d misses (%.1f%% hit rate), %d members in %d classes%n",
+                cache.hits, cache.misses, lookups == 0 ? 0 : cache.hits * 100.0 / lookups, cache.members, cache.classes);
+    }
+
+    private static String format(List<HookStats> stats) {
+        var sb = new StringBuilder();
+        stats.stream().sorted(Comparator.comparingLong(HookProfilerDialogBuilder::total).reversed()).limit(MAX_ROWS).forEach(s -> {
+            sb.append(s.member).append('\n');
+            if (s.callback == null) {
+                sb.append(String.format(Locale.ROOT, "  original: %d calls, %.1f ms, p50 < %d us, p99 < %d us%n",
+                        s.calls, s.originalNanos / 1e6, percentile(s, 0.5) / 1000, percentile(s, 0.99) / 1000));
+            } else {
+                sb.append("  ").append(s.module == null ? "?" : s.module).append(" / ").append(s.callback).append('\n');
+                sb.append(String.format(Locale.ROOT, "  callback: %d calls, before %.1f ms, after %.1f ms, p50 < %d us, p99 < %d us%n",
+                        s.calls, s.beforeNanos / 1e6, s.afterNanos / 1e6, percentile(s, 0.5) / 1000, percentile(s, 0.99) / 1000));
+            }
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+}
@@ -35,6 +35,7 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.widget.SearchView;
 import androidx.core.view.MenuProvider;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -53,15 +54,14 @@ import org.lsposed.manager.databinding.ItemLogTextviewBinding;
 import org.lsposed.manager.databinding.SwiperefreshRecyclerviewBinding;
 import org.lsposed.manager.receivers.LSPManagerServiceHolder;
 import org.lsposed.manager.ui.widget.EmptyStateRecyclerView;
+import org.lsposed.manager.util.MappedLog;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import rikka.material.app.LocaleDelegate;
@@ -78,6 +78,13 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
 
     private OptionsItemSelectListener optionsItemSelectListener;
 
+    interface QueryTextListener {
+        void onQueryTextChange(@NonNull String query);
+    }
+
+    private QueryTextListener queryTextListener;
+    private String query = "";
+
     private final ActivityResultLauncher<String> saveLogsLauncher = registerForActivityResult(
             new ActivityResultContracts.CreateDocument("application/zip"),
             uri -> {
@@ -127,6 +134,10 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
         this.optionsItemSelectListener = optionsItemSelectListener;
     }
 
+    public void setQueryTextListener(QueryTextListener queryTextListener) {
+        this.queryTextListener = queryTextListener;
+    }
+
     @Override
     public boolean onMenuItemSelected(@NonNull MenuItem item) {
         var itemId = item.getItemId();
@@ -151,6 +162,22 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
         wordWrap = menu.findItem(R.id.menu_word_wrap);
         wordWrap.setChecked(App.getPreferences().getBoolean("enable_word_wrap", false));
         binding.viewPager.setUserInputEnabled(wordWrap.isChecked());
+        var searchView = (SearchView) menu.findItem(R.id.menu_search).getActionView();
+        if (searchView != null) {
+            searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+                @Override
+                public boolean onQueryTextSubmit(String newText) {
+                    return onQueryTextChange(newText);
+                }
+
+                @Override
+                public boolean onQueryTextChange(String newText) {
+                    query = newText == null ? "" : newText;
+                    if (queryTextListener != null) queryTextListener.onQueryTextChange(query);
+                    return false;
+                }
+            });
+        }
     }
 
     @Override
@@ -177,13 +204,32 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
 
     public static class LogFragment extends BaseFragment {
         public static final int SCROLL_THRESHOLD = 500;
+        private static final long TAIL_INTERVAL_MS = 1000;
         protected boolean verbose;
         protected SwiperefreshRecyclerviewBinding binding;
         protected LogAdaptor adaptor;
         protected LinearLayoutManager layoutManager;
+        private final Runnable tailer = new Runnable() {
+            @Override
+            public void run() {
+                if (adaptor != null) adaptor.tail();
+                App.getMainHandler().postDelayed(this, TAIL_INTERVAL_MS);
+            }
+        };
 
         class LogAdaptor extends EmptyStateRecyclerView.EmptyStateAdapter<LogAdaptor.ViewHolder> {
-            private List<CharSequence> log = Collections.emptyList();
+            private MappedLog log = null;
+            // shown instead of the log when it cannot be opened
+            private List<CharSequence> error = Collections.emptyList();
+            // number of indexed lines shown, trails the log until the ui catches up
+            private int lineCount = 0;
+            private String query = "";
+            // lines matching query, null when not searching
+            private int[] matches = null;
+            // lines before this one have been searched for query, -1 while a search is running
+            private int searchedLines = 0;
+            private int generation = 0;
+            private boolean tailing = false;
             private boolean isLoaded = false;
 
             @NonNull
@@ -194,37 +240,145 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
 
             @Override
             public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-                holder.item.setText(log.get(position));
+                if (log == null) {
+                    holder.item.setText(error.get(position));
+                } else {
+                    holder.item.setText(log.getLine(matches == null ? position : matches[position]));
+                }
             }
 
             @Override
             public int getItemCount() {
-                return log.size();
+                if (log == null) return error.size();
+                return matches == null ? lineCount : matches.length;
             }
 
             @SuppressLint("NotifyDataSetChanged")
-            void refresh(List<CharSequence> log) {
+            void refresh(MappedLog log, List<CharSequence> error) {
                 runOnUiThread(() -> {
-                    isLoaded = true;
+                    close();
                     this.log = log;
+                    this.error = error;
+                    lineCount = log == null ? 0 : log.getLineCount();
+                    matches = null;
+                    generation++;
+                    isLoaded = true;
                     notifyDataSetChanged();
+                    if (!query.isEmpty()) filter(query);
                 });
             }
 
             void fullRefresh() {
                 runAsync(() -> {
                     isLoaded = false;
-                    List<CharSequence> tmp;
-                    try (var parcelFileDescriptor = ConfigManager.getLog(verbose);
-                         var br = new BufferedReader(new InputStreamReader(new FileInputStream(parcelFileDescriptor != null ? parcelFileDescriptor.getFileDescriptor() : null)))) {
-                        tmp = br.lines().parallel().collect(Collectors.toList());
+                    MappedLog tmp = null;
+                    try {
+                        var parcelFileDescriptor = ConfigManager.getLog(verbose);
+                        if (parcelFileDescriptor == null) throw new FileNotFoundException("Log is unavailable");
+                        tmp = new MappedLog(parcelFileDescriptor, App.getInstance().getCacheDir());
+                        tmp.update();
+                        refresh(tmp, Collections.emptyList());
                     } catch (Throwable e) {
-                        tmp = Arrays.asList(Log.getStackTraceString(e).split("\n"));
+                        if (tmp != null) closeLog(tmp);
+                        refresh(null, Arrays.asList(Log.getStackTraceString(e).split("\n")));
+                    }
+                });
+            }
+
+            @SuppressLint("NotifyDataSetChanged")
+            void filter(String query) {
+                this.query = query == null ? "" : query;
+                var current = log;
+                var q = this.query;
+                var gen = ++generation;
+                if (current == null || q.isEmpty()) {
+                    matches = null;
+                    notifyDataSetChanged();
+                    return;
+                }
+                // nothing to append to until the search is done
+                searchedLines = -1;
+                runAsync(() -> {
+                    var to = current.getLineCount();
+                    var result = current.search(q, 0, to);
+                    runOnUiThread(() -> {
+                        if (gen != generation) return;
+                        matches = result;
+                        searchedLines = to;
+                        notifyDataSetChanged();
+                    });
+                });
+            }
+
+            // show the lines appended to the log since it was last indexed
+            @SuppressLint("NotifyDataSetChanged")
+            void tail() {
+                var current = log;
+                if (current == null || tailing) return;
+                tailing = true;
+                var q = query;
+                var from = searchedLines;
+                var gen = generation;
+                runAsync(() -> {
+                    int old;
+                    try {
+                        old = current.update();
+                    } catch (IOException e) {
+                        Log.w(App.TAG, "tail log", e);
+                        runOnUiThread(() -> tailing = false);
+                        return;
                     }
-                    refresh(tmp);
+                    var to = current.getLineCount();
+                    var found = q.isEmpty() || old < 0 || from < 0 ? null : current.search(q, from, to);
+                    runOnUiThread(() -> {
+                        tailing = false;
+                        if (current != log) return;
+                        if (old < 0) {
+                            // truncated, start over
+                            lineCount = to;
+                            if (query.isEmpty()) notifyDataSetChanged();
+                            else filter(query);
+                            return;
+                        }
+                        var atBottom = layoutManager.findLastVisibleItemPosition() >= getItemCount() - 1;
+                        var added = to - lineCount;
+                        lineCount = to;
+                        if (matches == null) {
+                            if (added > 0) notifyItemRangeInserted(to - added, added);
+                        } else if (found != null && gen == generation) {
+                            var start = matches.length;
+                            var last = start == 0 ? -1 : matches[start - 1];
+                            var merged = Arrays.copyOf(matches, start + found.length);
+                            var size = start;
+                            for (var line : found) {
+                                if (line > last) merged[size++] = line;
+                            }
+                            matches = Arrays.copyOf(merged, size);
+                            searchedLines = Math.max(searchedLines, to);
+                            if (size > start) notifyItemRangeInserted(start, size - start);
+                        }
+                        if (atBottom && getItemCount() > 0) {
+                            binding.recyclerView.scrollToPosition(getItemCount() - 1);
+                        }
+                    });
                 });
             }
 
+            void close() {
+                if (log != null) {
+                    closeLog(log);
+                    log = null;
+                }
+            }
+
+            private void closeLog(MappedLog log) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    Log.w(App.TAG, "close log", e);
+                }
+            }
+
             @Override
             public boolean isLoaded() {
                 return isLoaded;
@@ -294,6 +448,10 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
             if (parent instanceof LogsFragment logsFragment) {
                 logsFragment.binding.appBar.setLifted(!binding.recyclerView.getBorderViewDelegate().isShowingTopBorder());
                 binding.recyclerView.getBorderViewDelegate().setBorderVisibilityChangedListener((top, oldTop, bottom, oldBottom) -> logsFragment.binding.appBar.setLifted(!top));
+                logsFragment.setQueryTextListener(adaptor::filter);
+                if (!logsFragment.query.equals(adaptor.query)) {
+                    adaptor.filter(logsFragment.query);
+                }
                 logsFragment.setOptionsItemSelectListener(item -> {
                     int itemId = item.getItemId();
                     if (itemId == R.id.menu_scroll_top) {
@@ -332,6 +490,7 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
         public void onResume() {
             super.onResume();
             attachListeners();
+            App.getMainHandler().postDelayed(tailer, TAIL_INTERVAL_MS);
         }
 
 
@@ -339,6 +498,13 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
         public void onPause() {
             super.onPause();
             detachListeners();
+            App.getMainHandler().removeCallbacks(tailer);
+        }
+
+        @Override
+        public void onDestroyView() {
+            super.onDestroyView();
+            if (adaptor != null) adaptor.close();
         }
 
         @Override
@@ -48,6 +48,7 @@ import org.lsposed.manager.R;
 import org.lsposed.manager.databinding.FragmentSettingsBinding;
 import org.lsposed.manager.repo.RepoLoader;
 import org.lsposed.manager.ui.activity.MainActivity;
+import org.lsposed.manager.ui.dialog.HookProfilerDialogBuilder;
 import org.lsposed.manager.util.BackupUtils;
 import org.lsposed.manager.util.CloudflareDNS;
 import org.lsposed.manager.util.LangList;
@@ -185,6 +186,40 @@ public class SettingsFragment extends BaseFragment {
                 });
             }
 
+            MaterialSwitchPreference prefModuleAot = findPreference("enable_module_aot");
+            if (prefModuleAot != null) {
+                var supported = installed && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+                prefModuleAot.setEnabled(supported);
+                prefModuleAot.setChecked(supported && ConfigManager.isModuleAotEnabled());
+                prefModuleAot.setOnPreferenceChangeListener((preference, newValue) -> ConfigManager.setModuleAotEnabled((boolean) newValue));
+            }
+
+            MaterialSwitchPreference prefHookProfiler = findPreference("enable_hook_profiler");
+            if (prefHookProfiler != null) {
+                prefHookProfiler.setEnabled(installed);
+                prefHookProfiler.setChecked(installed && ConfigManager.isHookProfilerEnabled());
+                prefHookProfiler.setOnPreferenceChangeListener((preference, newValue) -> ConfigManager.setHookProfilerEnabled((boolean) newValue));
+            }
+
+            Preference hookProfiler = findPreference("hook_profiler");
+            if (hookProfiler != null) {
+                hookProfiler.setOnPreferenceClickListener(preference -> {
+                    var fragment = parentFragment;
+                    fragment.runAsync(() -> {
+                        var stats = ConfigManager.getHookStats();
+                        var startup = ConfigManager.getModuleStartupStats();
+                        var cache = ConfigManager.getReflectionCacheStats();
+                        fragment.runOnUiThread(() -> {
+                            var activity = getActivity();
+                            if (activity != null) {
+                                new HookProfilerDialogBuilder(activity, stats, startup, cache).show();
+                            }
+                        });
+                    });
+                    return true;
+                });
+            }
+
             Preference shortcut = findPreference("add_shortcut");
             if (shortcut != null) {
                 shortcut.setVisible(App.isParasitic);
@@ -0,0 +1,228 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.manager.util;
+
+import android.os.ParcelFileDescriptor;
+
+import org.lsposed.lspd.util.LogDecoder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * A log file that is mapped instead of read. Lines are located through an index of their
+ * offsets, which grows as the file is appended to, and only decoded when they are shown.
+ * Binary logs are decoded block by block into an unlinked file in the cache, which is mapped
+ * in their place.
+ */
+public class MappedLog implements Closeable {
+    private final ParcelFileDescriptor fd;
+    private final FileInputStream stream;
+    private final FileChannel logChannel;
+    private final File cacheDir;
+    private final Object updateLock = new Object();
+
+    // the log is binary if this is set, told apart once it is long enough to have a header
+    private LogDecoder decoder = null;
+    private boolean detected = false;
+    private RandomAccessFile decoded = null;
+    // the text being indexed, the log itself or what has been decoded from it
+    private FileChannel channel;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    // start of each line, starts[lines] is the end of the last complete line
+    private int[] starts = new int[1024];
+    private int lines = 0;
+
+    public MappedLog(ParcelFileDescriptor fd, File cacheDir) {
+        this.fd = fd;
+        this.cacheDir = cacheDir;
+        stream = new FileInputStream(fd.getFileDescriptor());
+        logChannel = stream.getChannel();
+        channel = logChannel;
+    }
+
+    // decode what has been appended to a binary log, returns false if the text was replaced
+    private boolean decode() throws IOException {
+        var replaced = false;
+        if (!detected) {
+            if (logChannel.size() < LogDecoder.HEADER_SIZE) return true;
+            detected = true;
+            if (!LogDecoder.isBinary(logChannel)) return true;
+            reset();
+            replaced = true;
+        }
+        if (decoder == null) return true;
+        var out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        if (!decoder.decode(out)) {
+            // the old file is not truncated, readers may still have it mapped
+            reset();
+            replaced = true;
+            out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            decoder.decode(out);
+        }
+        out.flush();
+        return !replaced;
+    }
+
+    private void reset() throws IOException {
+        var file = File.createTempFile("log", ".txt", cacheDir);
+        try {
+            var old = decoded;
+            decoded = new RandomAccessFile(file, "rw");
+            channel = decoded.getChannel();
+            decoder = new LogDecoder(logChannel, ZoneId.systemDefault());
+            if (old != null) old.close();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Index the lines appended since the last call.
+     *
+     * @return the number of lines before this call, or -1 if the log was truncated and the
+     * index has been rebuilt from the start
+     */
+    public int update() throws IOException {
+        synchronized (updateLock) {
+            var restarted = !decode();
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Log is too large: " + size);
+            int[] newStarts;
+            int newLines;
+            int mappedSize;
+            synchronized (this) {
+                newStarts = starts;
+                newLines = lines;
+                mappedSize = buffer.capacity();
+            }
+            var old = newLines;
+            if (restarted || size < newStarts[newLines]) {
+                old = -1;
+                // a new array, readers may still be using the old one
+                newStarts = new int[1024];
+                newLines = 0;
+            } else if (size == mappedSize) {
+                return old;
+            }
+            // scan without holding the lock, entries past lines are not read by anyone else
+            var mapped = size == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int i = newStarts[newLines]; i < size; i++) {
+                if (mapped.get(i) != '\n') continue;
+                if (newLines + 1 == newStarts.length) {
+                    newStarts = Arrays.copyOf(newStarts, newStarts.length * 2);
+                }
+                newStarts[++newLines] = i + 1;
+            }
+            synchronized (this) {
+                buffer = mapped;
+                starts = newStarts;
+                lines = newLines;
+            }
+            return old;
+        }
+    }
+
+    public synchronized int getLineCount() {
+        return lines;
+    }
+
+    public synchronized String getLine(int line) {
+        var start = starts[line];
+        var end = starts[line + 1] - 1;
+        if (end > start && buffer.get(end - 1) == '\r') end--;
+        var slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Find the lines containing the query, matching ASCII letters case-insensitively. The
+     * mapped bytes are compared directly, so no line is decoded.
+     *
+     * @param fromLine the first line to search
+     * @param toLine   the line after the last one to search, at most {@link #getLineCount()}
+     * @return the indices of the matching lines in ascending order
+     */
+    public int[] search(String query, int fromLine, int toLine) {
+        var pattern = query.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = lowerCase(pattern[i]);
+        }
+        ByteBuffer bytes;
+        int[] lineStarts;
+        int lineCount;
+        synchronized (this) {
+            bytes = buffer.duplicate();
+            lineStarts = starts;
+            lineCount = Math.min(lines, toLine);
+        }
+        var result = new int[16];
+        var count = 0;
+        for (int line = fromLine; line < lineCount; line++) {
+            var end = lineStarts[line + 1] - 1;
+            if (!contains(bytes, lineStarts[line], end, pattern)) continue;
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = line;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean contains(ByteBuffer bytes, int start, int end, byte[] pattern) {
+        if (pattern.length == 0) return true;
+        var first = pattern[0];
+        outer:
+        for (int i = start; i <= end - pattern.length; i++) {
+            if (lowerCase(bytes.get(i)) != first) continue;
+            for (int j = 1; j < pattern.length; j++) {
+                if (lowerCase(bytes.get(i + j)) != pattern[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (updateLock) {
+            try (fd; stream; var ignored = decoded) {
+                logChannel.close();
+            }
+        }
+    }
+}
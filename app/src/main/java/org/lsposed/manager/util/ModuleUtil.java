@@ -131,12 +131,23 @@ public final class ModuleUtil {
 
         Map<Pair<String, Integer>, InstalledModule> modules = new HashMap<>();
         var users = ConfigManager.getUsers();
-        for (PackageInfo pkg : ConfigManager.getInstalledPackagesFromAllUsers(PackageManager.GET_META_DATA | MATCH_ALL_FLAGS, false)) {
-            ApplicationInfo app = pkg.applicationInfo;
+        for (var page : ConfigManager.getInstalledApps()) {
+            for (int i = 0; i < page.packageNames.length; i++) {
+                // the daemon has told modules apart, only they need their meta data
+                if (!page.modules[i]) continue;
+                var userId = page.uids[i] / App.PER_USER_RANGE;
+                PackageInfo pkg;
+                try {
+                    pkg = ConfigManager.getPackageInfo(page.packageNames[i], PackageManager.GET_META_DATA | PackageManager.MATCH_UNINSTALLED_PACKAGES, userId);
+                } catch (NameNotFoundException e) {
+                    continue;
+                }
+                ApplicationInfo app = pkg.applicationInfo;
 
-            var modernApk = getModernModuleApk(app);
-            if (modernApk != null || isLegacyModule(app)) {
-                modules.computeIfAbsent(Pair.create(pkg.packageName, app.uid / App.PER_USER_RANGE), k -> new InstalledModule(pkg, modernApk));
+                var modernApk = getModernModuleApk(app);
+                if (modernApk != null || isLegacyModule(app)) {
+                    modules.computeIfAbsent(Pair.create(pkg.packageName, userId), k -> new InstalledModule(pkg, modernApk));
+                }
             }
         }
 
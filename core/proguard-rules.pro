@@ -18,6 +18,7 @@
 -keepclassmembers class org.lsposed.lspd.impl.LSPosedBridge$NativeHooker {
     <init>(java.lang.reflect.Executable);
     callback(...);
+    volatile *** snapshot;
 }
 -keepclassmembers class org.lsposed.lspd.impl.LSPosedBridge$HookerCallback {
     final *** beforeInvocation;
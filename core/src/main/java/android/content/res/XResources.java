@@ -42,6 +42,7 @@ import android.text.Html;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -53,6 +54,7 @@ import androidx.annotation.RequiresApi;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -79,7 +81,10 @@ import xposed.dummy.XTypedArraySuperClass;
  */
 @SuppressWarnings("JniMissingFunction")
 public class XResources extends XResourcesSuperClass {
-	private static final SparseArray<HashMap<String, Object>> sReplacements = new SparseArray<>();
+	// guards setting replacements, they are published as immutable tables and read without it
+	private static final Object sReplacementsLock = new Object();
+	private static final Replacements sSystemReplacements = new Replacements();
+	private static final HashMap<String, Replacements> sReplacementsMap = new HashMap<>();
 	private static final SparseArray<HashMap<String, ResourceNames>> sResourceNames = new SparseArray<>();
 
 	// A resource ID is a 32 bit number of the form: PPTTNNNN. PP is the package the resource is for;
@@ -88,11 +93,14 @@ public class XResources extends XResourcesSuperClass {
 	// For applications resources, PP is always 0x7f.
 	private static final byte[] sSystemReplacementsCache = new byte[256]; // bitmask: 0x000700ff => 2048 bit => 256 bytes
 	private byte[] mReplacementsCache; // bitmask: 0x0007007f => 1024 bit => 128 bytes
+	private Replacements mReplacements;
 	private static final HashMap<String, byte[]> sReplacementsCacheMap = new HashMap<>();
 	private static final SparseArray<ColorStateList> sColorStateListCache = new SparseArray<>(0);
 
 	private static final SparseArray<HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>>> sLayoutCallbacks = new SparseArray<>();
 	private static final WeakHashMap<XmlResourceParser, XMLInstanceDetails> sXmlInstanceDetails = new WeakHashMap<>();
+	// module resources -> resource dir of the original resources -> translated IDs
+	private static final WeakHashMap<Resources, HashMap<String, IdTranslations>> sIdTranslations = new WeakHashMap<>();
 
 	private static final String EXTRA_XML_INSTANCE_DETAILS = "xmlInstanceDetails";
 	private static final ThreadLocal<LinkedList<MethodHookParam>> sIncludedLayouts = ThreadLocal.withInitial(() -> new LinkedList<>());
@@ -103,6 +111,8 @@ public class XResources extends XResourcesSuperClass {
 
 	private String mResDir;
 	private String mPackageName;
+	// the translations last used to rewrite an XML, consecutive lookups mostly hit them
+	private volatile IdTranslations mLastIdTranslations;
 
 	public XResources(ClassLoader classLoader, String resDir) {
 		super(classLoader);
@@ -114,6 +124,9 @@ public class XResources extends XResourcesSuperClass {
 			synchronized (sReplacementsCacheMap) {
 				mReplacementsCache = sReplacementsCacheMap.computeIfAbsent(resDir, k -> new byte[128]);
 			}
+			synchronized (sReplacementsMap) {
+				mReplacements = sReplacementsMap.computeIfAbsent(resDir, k -> new Replacements());
+			}
 		}
 	}
 
@@ -124,7 +137,7 @@ public class XResources extends XResourcesSuperClass {
 
 	/** @hide */
 	public boolean isFirstLoad() {
-		synchronized (sReplacements) {
+		synchronized (sReplacementsLock) {
 			if (mResDir == null)
 				return false;
 
@@ -141,10 +154,10 @@ public class XResources extends XResourcesSuperClass {
 				return true;
 
 			// file was changed meanwhile => remove old replacements
-			for (int i = 0; i < sReplacements.size(); i++) {
-				sReplacements.valueAt(i).remove(mResDir);
-			}
+			mReplacements.table = ReplacementTable.EMPTY;
 			Arrays.fill(mReplacementsCache, (byte) 0);
+			// translated IDs are only known to have replacements as long as these exist
+			dropIdTranslations(mResDir);
 			return true;
 		}
 	}
@@ -593,13 +606,93 @@ public class XResources extends XResourcesSuperClass {
 			}
 		}
 
-		synchronized (sReplacements) {
-			HashMap<String, Object> inner = sReplacements.get(id);
-			if (inner == null) {
-				inner = new HashMap<>();
-				sReplacements.put(id, inner);
+		Replacements replacements = (resDir != null) ? res.mReplacements : sSystemReplacements;
+		synchronized (sReplacementsLock) {
+			replacements.table = replacements.table.with(id, replacement);
+		}
+	}
+
+	/** The replacements of one resource dir, or the system-wide ones. */
+	private static final class Replacements {
+		volatile ReplacementTable table = ReplacementTable.EMPTY;
+	}
+
+	/**
+	 * Immutable open addressing table of replacements by resource ID. Setting a replacement
+	 * publishes a copy, so that resources can be fetched from any thread without locking.
+	 */
+	private static final class ReplacementTable {
+		static final ReplacementTable EMPTY = new ReplacementTable(new int[1], new Object[1], 0);
+
+		// 0 marks a free slot, it is not a valid resource ID
+		private final int[] ids;
+		private final Object[] values;
+		private final int size;
+
+		private ReplacementTable(int[] ids, Object[] values, int size) {
+			this.ids = ids;
+			this.values = values;
+			this.size = size;
+		}
+
+		private static int slot(int id, int mask) {
+			// IDs are dense runs per type, spread them so that the runs don't overlap
+			int h = id * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		Object get(int id) {
+			int mask = ids.length - 1;
+			for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+				int key = ids[i];
+				if (key == id)
+					return values[i];
+				if (key == 0)
+					return null;
+			}
+		}
+
+		boolean contains(int id) {
+			int mask = ids.length - 1;
+			for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+				int key = ids[i];
+				if (key == id)
+					return true;
+				if (key == 0)
+					return false;
+			}
+		}
+
+		ReplacementTable with(int id, Object value) {
+			int newSize = contains(id) ? size : size + 1;
+			// keep at least half of the slots free
+			int capacity = ids.length;
+			while (capacity < newSize * 2)
+				capacity <<= 1;
+			int[] newIds;
+			Object[] newValues;
+			int mask = capacity - 1;
+			if (capacity == ids.length) {
+				newIds = ids.clone();
+				newValues = values.clone();
+			} else {
+				newIds = new int[capacity];
+				newValues = new Object[capacity];
+				for (int i = 0; i < ids.length; i++) {
+					if (ids[i] != 0)
+						put(newIds, newValues, mask, ids[i], values[i]);
+				}
 			}
-			inner.put(resDir, replacement);
+			put(newIds, newValues, mask, id, value);
+			return new ReplacementTable(newIds, newValues, newSize);
+		}
+
+		private static void put(int[] ids, Object[] values, int mask, int id, Object value) {
+			int i = slot(id, mask);
+			while (ids[i] != 0 && ids[i] != id)
+				i = (i + 1) & mask;
+			ids[i] = id;
+			values[i] = value;
 		}
 	}
 
@@ -622,20 +715,12 @@ public class XResources extends XResourcesSuperClass {
 				return null;
 		}
 
-		HashMap<String, Object> inner;
-		synchronized (sReplacements) {
-			inner = sReplacements.get(id);
-		}
-
-		if (inner == null)
-			return null;
-
-		synchronized (inner) {
-			Object result = inner.get(mResDir);
-			if (result != null || mResDir == null)
+		if (mReplacements != null) {
+			Object result = mReplacements.table.get(id);
+			if (result != null)
 				return result;
-			return inner.get(null);
 		}
+		return sSystemReplacements.table.get(id);
 	}
 
 	/** @hide */
@@ -1145,6 +1230,54 @@ public class XResources extends XResourcesSuperClass {
 		return false;
 	}
 
+	/**
+	 * IDs of a module's resources translated to those of one original package. Filled in as
+	 * forwarded XMLs are rewritten, so they don't need to be looked up by name again when an XML
+	 * is loaded another time.
+	 */
+	private static final class IdTranslations {
+		// weak, as this is reachable from the map entry keyed by the module resources
+		final WeakReference<Resources> repRes;
+		final SparseIntArray resIds = new SparseIntArray();
+		final SparseIntArray attrIds = new SparseIntArray();
+		volatile boolean dropped = false;
+
+		IdTranslations(Resources repRes) {
+			this.repRes = new WeakReference<>(repRes);
+		}
+	}
+
+	private static IdTranslations getIdTranslations(XResources origRes, Resources repRes) {
+		IdTranslations translations = origRes.mLastIdTranslations;
+		if (translations != null && !translations.dropped && translations.repRes.get() == repRes)
+			return translations;
+
+		synchronized (sIdTranslations) {
+			HashMap<String, IdTranslations> byResDir = sIdTranslations.get(repRes);
+			if (byResDir == null) {
+				byResDir = new HashMap<>();
+				sIdTranslations.put(repRes, byResDir);
+			}
+			translations = byResDir.get(origRes.mResDir);
+			if (translations == null) {
+				translations = new IdTranslations(repRes);
+				byResDir.put(origRes.mResDir, translations);
+			}
+		}
+		origRes.mLastIdTranslations = translations;
+		return translations;
+	}
+
+	private static void dropIdTranslations(String resDir) {
+		synchronized (sIdTranslations) {
+			for (HashMap<String, IdTranslations> byResDir : sIdTranslations.values()) {
+				IdTranslations translations = byResDir.remove(resDir);
+				if (translations != null)
+					translations.dropped = true;
+			}
+		}
+	}
+
 	/**
 	 * Used to replace reference IDs in XMLs.
 	 *
@@ -1154,43 +1287,60 @@ public class XResources extends XResourcesSuperClass {
 	 * the compiled XML file in the memory.
 	 */
 	private static int translateResId(int id, XResources origRes, Resources repRes) {
-		try {
-			String entryName = repRes.getResourceEntryName(id);
-			String entryType = repRes.getResourceTypeName(id);
-			String origPackage = origRes.mPackageName;
-			int origResId = 0;
-			try {
-				// look for a resource with the same name and type in the original package
-				origResId = origRes.getIdentifier(entryName, entryType, origPackage);
-			} catch (NotFoundException ignored) {}
-
-			boolean repResDefined = false;
-			try {
-				final TypedValue tmpValue = new TypedValue();
-				repRes.getValue(id, tmpValue, false);
-				// if a resource has not been defined (i.e. only a resource ID has been created), it will equal "false"
-				// this means a boolean "false" value is not detected of it is directly referenced in an XML file
-				repResDefined = !(tmpValue.type == TypedValue.TYPE_INT_BOOLEAN && tmpValue.data == 0);
-			} catch (NotFoundException ignored) {}
-
-			if (!repResDefined && origResId == 0 && !entryType.equals("id")) {
-				XposedBridge.log(entryType + "/" + entryName + " is neither defined in module nor in original resources");
-				return 0;
-			}
-
-			// exists only in module, so create a fake resource id
-			if (origResId == 0)
-				origResId = getFakeResId(repRes, id);
-
-			// IDs will never be loaded, no need to set a replacement
-			if (repResDefined && !entryType.equals("id"))
-				origRes.setReplacement(origResId, new XResForwarder(repRes, id));
+		IdTranslations translations = getIdTranslations(origRes, repRes);
+		synchronized (translations) {
+			int index = translations.resIds.indexOfKey(id);
+			if (index >= 0)
+				return translations.resIds.valueAt(index);
+		}
 
-			return origResId;
+		int origResId;
+		try {
+			origResId = lookupResId(id, origRes, repRes);
 		} catch (Exception e) {
 			XposedBridge.log(e);
 			return id;
 		}
+		// the replacement has been set for this resource dir, so it doesn't have to be set again
+		synchronized (translations) {
+			translations.resIds.put(id, origResId);
+		}
+		return origResId;
+	}
+
+	private static int lookupResId(int id, XResources origRes, Resources repRes) {
+		String entryName = repRes.getResourceEntryName(id);
+		String entryType = repRes.getResourceTypeName(id);
+		String origPackage = origRes.mPackageName;
+		int origResId = 0;
+		try {
+			// look for a resource with the same name and type in the original package
+			origResId = origRes.getIdentifier(entryName, entryType, origPackage);
+		} catch (NotFoundException ignored) {}
+
+		boolean repResDefined = false;
+		try {
+			final TypedValue tmpValue = new TypedValue();
+			repRes.getValue(id, tmpValue, false);
+			// if a resource has not been defined (i.e. only a resource ID has been created), it will equal "false"
+			// this means a boolean "false" value is not detected of it is directly referenced in an XML file
+			repResDefined = !(tmpValue.type == TypedValue.TYPE_INT_BOOLEAN && tmpValue.data == 0);
+		} catch (NotFoundException ignored) {}
+
+		if (!repResDefined && origResId == 0 && !entryType.equals("id")) {
+			XposedBridge.log(entryType + "/" + entryName + " is neither defined in module nor in original resources");
+			return 0;
+		}
+
+		// exists only in module, so create a fake resource id
+		if (origResId == 0)
+			origResId = getFakeResId(repRes, id);
+
+		// IDs will never be loaded, no need to set a replacement
+		if (repResDefined && !entryType.equals("id"))
+			origRes.setReplacement(origResId, new XResForwarder(repRes, id));
+
+		return origResId;
 	}
 
 	/**
@@ -1239,8 +1389,9 @@ public class XResources extends XResourcesSuperClass {
 	 */
 	public int addResource(Resources res, int id) {
 		int fakeId = getFakeResId(res, id);
-		synchronized (sReplacements) {
-			if (sReplacements.indexOfKey(fakeId) < 0)
+		synchronized (sReplacementsLock) {
+			Replacements replacements = (mResDir != null) ? mReplacements : sSystemReplacements;
+			if (!replacements.table.contains(fakeId))
 				setReplacement(fakeId, new XResForwarder(res, id));
 		}
 		return fakeId;
@@ -1249,14 +1400,28 @@ public class XResources extends XResourcesSuperClass {
 	/**
 	 * Similar to {@link #translateResId}, but used to determine the original ID of attribute names.
 	 */
-	private static int translateAttrId(String attrName, XResources origRes) {
+	private static int translateAttrId(int attrId, XResources origRes, Resources repRes) {
+		IdTranslations translations = getIdTranslations(origRes, repRes);
+		synchronized (translations) {
+			int index = translations.attrIds.indexOfKey(attrId);
+			if (index >= 0)
+				return translations.attrIds.valueAt(index);
+		}
+
 		String origPackage = origRes.mPackageName;
 		int origAttrId = 0;
+		String attrName = null;
 		try {
+			attrName = repRes.getResourceEntryName(attrId);
 			origAttrId = origRes.getIdentifier(attrName, "attr", origPackage);
 		} catch (NotFoundException e) {
+			if (attrName == null)
+				attrName = "0x" + Integer.toHexString(attrId);
 			XposedBridge.log("Attribute " + attrName + " not found in original resources");
 		}
+		synchronized (translations) {
+			translations.attrIds.put(attrId, origAttrId);
+		}
 		return origAttrId;
 	}
 
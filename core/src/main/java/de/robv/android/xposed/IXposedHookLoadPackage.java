@@ -2,6 +2,8 @@ package de.robv.android.xposed;
 
 import android.app.Application;
 
+import org.lsposed.lspd.impl.HookProfiler;
+
 import de.robv.android.xposed.callbacks.XC_LoadPackage;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
@@ -31,7 +33,16 @@ public interface IXposedHookLoadPackage extends IXposedMod {
         }
         @Override
         public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
-            instance.handleLoadPackage(lpparam);
+            if (!HookProfiler.enabled) {
+                instance.handleLoadPackage(lpparam);
+                return;
+            }
+            var start = System.nanoTime();
+            try {
+                instance.handleLoadPackage(lpparam);
+            } finally {
+                HookProfiler.recordStartup(instance.getClass(), HookProfiler.PHASE_PACKAGE_LOADED, System.nanoTime() - start);
+            }
         }
     }
 }
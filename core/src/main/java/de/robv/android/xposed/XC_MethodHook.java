@@ -22,7 +22,6 @@ package de.robv.android.xposed;
 
 import java.lang.reflect.Executable;
 import java.lang.reflect.Member;
-import java.util.HashMap;
 
 import de.robv.android.xposed.callbacks.IXUnhook;
 import de.robv.android.xposed.callbacks.XCallback;
@@ -123,8 +122,6 @@ public abstract class XC_MethodHook extends XCallback {
         public Throwable throwable = null;
         public boolean returnEarly = false;
 
-        private final HashMap<String, Object> extras = new HashMap<>();
-
         /**
          * Returns the result of the method call.
          */
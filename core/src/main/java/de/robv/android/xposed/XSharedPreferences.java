@@ -32,7 +32,6 @@ import android.util.Log;
 import com.android.internal.util.XmlUtils;
 
 import org.lsposed.lspd.core.BuildConfig;
-import org.lsposed.lspd.util.MetaDataReader;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
@@ -163,25 +162,7 @@ public final class XSharedPreferences implements SharedPreferences {
         boolean newModule = false;
         var m = XposedInit.getLoadedModules().getOrDefault(packageName, Optional.empty());
         if (m.isPresent()) {
-            boolean isModule = false;
-            int xposedminversion = -1;
-            boolean xposedsharedprefs = false;
-            try {
-                Map<String, Object> metaData = MetaDataReader.getMetaData(new File(m.get()));
-                isModule = metaData.containsKey("xposedminversion");
-                if (isModule) {
-                    Object minVersionRaw = metaData.get("xposedminversion");
-                    if (minVersionRaw instanceof Integer) {
-                        xposedminversion = (Integer) minVersionRaw;
-                    } else if (minVersionRaw instanceof String) {
-                        xposedminversion = MetaDataReader.extractIntPart((String) minVersionRaw);
-                    }
-                    xposedsharedprefs = metaData.containsKey("xposedsharedprefs");
-                }
-            } catch (NumberFormatException | IOException e) {
-                Log.w(TAG, "Apk parser fails: " + e);
-            }
-            newModule = isModule && (xposedminversion > 92 || xposedsharedprefs);
+            newModule = XposedInit.isNewXSPModule(packageName);
         }
         if (newModule) {
             mFile = new File(serviceClient.getPrefsPath(packageName), prefFileName + ".xml");
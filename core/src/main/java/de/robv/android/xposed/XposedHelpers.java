@@ -22,9 +22,11 @@ package de.robv.android.xposed;
 
 import android.content.res.AssetManager;
 import android.content.res.Resources;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 import org.apache.commons.lang3.ClassUtils;
 import org.apache.commons.lang3.reflect.MemberUtilsX;
@@ -33,6 +35,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -46,11 +51,13 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Helpers that simplify hooking and calling methods/constructors, getting and settings fields, ...
@@ -59,10 +66,16 @@ public final class XposedHelpers {
     private XposedHelpers() {
     }
 
-    private static final ConcurrentHashMap<MemberCacheKey.Field, Optional<Field>> fieldCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Method, Optional<Method>> methodCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Constructor, Optional<Constructor<?>>> constructorCache = new ConcurrentHashMap<>();
-    private static final WeakHashMap<Object, HashMap<String, Object>> additionalFields = new WeakHashMap<>();
+    // members cached per class, so a class that looked up many of them can't grow without bound
+    private static final int MAX_CACHED_MEMBERS = 1024;
+
+    private static final ClassMembersLookup classMembers = Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ?
+            new ClassValueMembers() : new WeakClassMembers();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder cachedMembers = new LongAdder();
+    private static final LongAdder cachedClasses = new LongAdder();
+    private static final AdditionalFields additionalFields = new AdditionalFields();
     private static final HashMap<String, ThreadLocal<AtomicInteger>> sMethodDepth = new HashMap<>();
 
     /**
@@ -70,6 +83,7 @@ public final class XposedHelpers {
      * the benefits of 'HashMap', this is basically the solution of performance traps.
      * <p>
      * So in fact we only need to use the structural comparison results of the reflection object.
+     * The class is not part of the key, as every class has its own {@link ClassMembers}.
      *
      * @see <a href="https://github.com/RinOrz/LSPosed/blob/a44e1f1cdf0c5e5ebfaface828e5907f5425df1b/benchmark/src/result/ReflectionCacheBenchmark.json">benchmarks for ART</a>
      * @see <a href="https://github.com/meowool-catnip/cloak/blob/main/api/src/benchmark/kotlin/com/meowool/cloak/ReflectionObjectAccessTests.kt#L37-L65">benchmarks for JVM</a>
@@ -90,13 +104,11 @@ public final class XposedHelpers {
         }
 
         static final class Constructor extends MemberCacheKey {
-            private final Class<?> clazz;
             private final Class<?>[] parameters;
             private final boolean isExact;
 
-            public Constructor(Class<?> clazz, Class<?>[] parameters, boolean isExact) {
-                super(31 * Objects.hash(clazz, isExact) + Arrays.hashCode(parameters));
-                this.clazz = clazz;
+            public Constructor(Class<?>[] parameters, boolean isExact) {
+                super(31 * Boolean.hashCode(isExact) + Arrays.hashCode(parameters));
                 this.parameters = parameters;
                 this.isExact = isExact;
             }
@@ -106,12 +118,10 @@ public final class XposedHelpers {
                 if (this == o) return true;
                 if (!(o instanceof Constructor)) return false;
                 Constructor that = (Constructor) o;
-                return isExact == that.isExact && Objects.equals(clazz, that.clazz) && Arrays.equals(parameters, that.parameters);
+                return isExact == that.isExact && Arrays.equals(parameters, that.parameters);
             }
 
-            @NonNull
-            @Override
-            public String toString() {
+            String toString(Class<?> clazz) {
                 var str = clazz.getName() + getParametersString(parameters);
                 if (isExact) {
                     return str + "#exact";
@@ -121,40 +131,13 @@ public final class XposedHelpers {
             }
         }
 
-        static final class Field extends MemberCacheKey {
-            private final Class<?> clazz;
-            private final String name;
-
-            public Field(Class<?> clazz, String name) {
-                super(Objects.hash(clazz, name));
-                this.clazz = clazz;
-                this.name = name;
-            }
-
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (!(o instanceof Field)) return false;
-                Field field = (Field) o;
-                return Objects.equals(clazz, field.clazz) && Objects.equals(name, field.name);
-            }
-
-            @NonNull
-            @Override
-            public String toString() {
-                return clazz.getName() + "#" + name;
-            }
-        }
-
         static final class Method extends MemberCacheKey {
-            private final Class<?> clazz;
             private final String name;
             private final Class<?>[] parameters;
             private final boolean isExact;
 
-            public Method(Class<?> clazz, String name, Class<?>[] parameters, boolean isExact) {
-                super(31 * Objects.hash(clazz, name, isExact) + Arrays.hashCode(parameters));
-                this.clazz = clazz;
+            public Method(String name, Class<?>[] parameters, boolean isExact) {
+                super(31 * Objects.hash(name, isExact) + Arrays.hashCode(parameters));
                 this.name = name;
                 this.parameters = parameters;
                 this.isExact = isExact;
@@ -165,12 +148,10 @@ public final class XposedHelpers {
                 if (this == o) return true;
                 if (!(o instanceof Method)) return false;
                 Method method = (Method) o;
-                return isExact == method.isExact && Objects.equals(clazz, method.clazz) && Objects.equals(name, method.name) && Arrays.equals(parameters, method.parameters);
+                return isExact == method.isExact && Objects.equals(name, method.name) && Arrays.equals(parameters, method.parameters);
             }
 
-            @NonNull
-            @Override
-            public String toString() {
+            String toString(Class<?> clazz) {
                 var str = clazz.getName() + '#' + name + getParametersString(parameters);
                 if (isExact) {
                     return str + "#exact";
@@ -181,6 +162,211 @@ public final class XposedHelpers {
         }
     }
 
+    /**
+     * The members looked up in one class. Lookups that found nothing are kept as empty
+     * optionals, so asking again is answered without reflecting or throwing.
+     */
+    private static final class ClassMembers {
+        final ConcurrentHashMap<String, Optional<Field>> fields = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<MemberCacheKey.Method, Optional<Method>> methods = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<MemberCacheKey.Constructor, Optional<Constructor<?>>> constructors = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        ClassMembers() {
+            cachedClasses.increment();
+        }
+
+        <K, V> Optional<V> get(ConcurrentHashMap<K, Optional<V>> cache, K key) {
+            var member = cache.get(key);
+            if (member != null) cacheHits.increment();
+            return member;
+        }
+
+        <K, V> Optional<V> put(ConcurrentHashMap<K, Optional<V>> cache, K key, Optional<V> member) {
+            cacheMisses.increment();
+            if (size.get() >= MAX_CACHED_MEMBERS) return member;
+            var existing = cache.putIfAbsent(key, member);
+            if (existing != null) return existing;
+            size.incrementAndGet();
+            cachedMembers.increment();
+            return member;
+        }
+    }
+
+    private interface ClassMembersLookup {
+        ClassMembers get(Class<?> clazz);
+    }
+
+    /**
+     * Stores the members in the class itself, they are unloaded together with it.
+     */
+    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    private static final class ClassValueMembers extends ClassValue<ClassMembers> implements ClassMembersLookup {
+        @Override
+        protected ClassMembers computeValue(Class<?> type) {
+            return new ClassMembers();
+        }
+    }
+
+    /**
+     * Before {@link ClassValue}, the members are kept in a map weakly keyed by their class. As
+     * they reference the class, they are only softly reachable, or the class could never be
+     * unloaded: once the members are cleared under memory pressure, the class can go too.
+     */
+    private static final class WeakClassMembers implements ClassMembersLookup {
+        private final WeakIdentityMap<SoftReference<ClassMembers>> map = new WeakIdentityMap<>();
+
+        @Override
+        public ClassMembers get(Class<?> clazz) {
+            var ref = map.get(clazz);
+            var members = ref != null ? ref.get() : null;
+            if (members == null) {
+                members = new ClassMembers();
+                map.put(clazz, new SoftReference<>(members));
+            }
+            return members;
+        }
+    }
+
+    /**
+     * A map with weakly referenced keys that are compared by identity. Lookups never lock;
+     * entries of collected keys are purged from a reference queue whenever one is added.
+     */
+    private static final class WeakIdentityMap<V> {
+        private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+        private static final class WeakKey extends WeakReference<Object> {
+            private final int hash;
+
+            WeakKey(Object referent, ReferenceQueue<Object> queue) {
+                super(referent, queue);
+                hash = System.identityHashCode(referent);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (o == this) return true;
+                var referent = get();
+                if (referent == null) return false;
+                if (o instanceof WeakKey) return referent == ((WeakKey) o).get();
+                return o instanceof LookupKey && referent == ((LookupKey) o).referent;
+            }
+        }
+
+        private static final class LookupKey {
+            private final Object referent;
+
+            LookupKey(Object referent) {
+                this.referent = referent;
+            }
+
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(referent);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (o instanceof WeakKey) return referent == ((WeakKey) o).get();
+                return o instanceof LookupKey && referent == ((LookupKey) o).referent;
+            }
+        }
+
+        V get(Object key) {
+            return map.get(new LookupKey(key));
+        }
+
+        V putIfAbsent(Object key, V value) {
+            purge();
+            var existing = map.putIfAbsent(new WeakKey(key, queue), value);
+            return existing != null ? existing : value;
+        }
+
+        void put(Object key, V value) {
+            purge();
+            map.put(new WeakKey(key, queue), value);
+        }
+
+        private void purge() {
+            Object stale;
+            while ((stale = queue.poll()) != null) {
+                map.remove(stale);
+            }
+        }
+    }
+
+    /**
+     * Weak, identity keyed storage behind {@link #setAdditionalInstanceField} and friends.
+     */
+    private static final class AdditionalFields {
+        private final WeakIdentityMap<Fields> map = new WeakIdentityMap<>();
+
+        static final class Fields {
+            final ConcurrentHashMap<String, Object> objects = new ConcurrentHashMap<>();
+            // primitive values live in their own namespace so that updates don't box
+            final ConcurrentHashMap<String, AtomicLong> primitives = new ConcurrentHashMap<>();
+        }
+
+        Fields get(Object obj) {
+            return map.get(obj);
+        }
+
+        Fields getOrCreate(Object obj) {
+            var fields = map.get(obj);
+            if (fields != null) return fields;
+            return map.putIfAbsent(obj, new Fields());
+        }
+    }
+
+    /**
+     * Counters of the reflection caches, see {@link #getCacheStats()}.
+     *
+     * @hide
+     */
+    public static final class CacheStats {
+        public final long hits;
+        public final long misses;
+        // members and classes cached so far, including those of unloaded classes
+        public final long members;
+        public final long classes;
+
+        private CacheStats(long hits, long misses, long members, long classes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.members = members;
+            this.classes = classes;
+        }
+
+        public double hitRate() {
+            var lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d hits, %d misses (%.1f%% hit rate), %d members in %d classes",
+                    hits, misses, hitRate() * 100, members, classes);
+        }
+    }
+
+    /**
+     * @hide
+     */
+    public static CacheStats getCacheStats() {
+        return new CacheStats(cacheHits.sum(), cacheMisses.sum(), cachedMembers.sum(), cachedClasses.sum());
+    }
+
+    private static ClassMembers members(Class<?> clazz) {
+        return classMembers.get(clazz);
+    }
+
     /**
      * Look up a class with the specified class loader.
      *
@@ -233,17 +419,9 @@ public final class XposedHelpers {
      * @throws NoSuchFieldError In case the field was not found.
      */
     public static Field findField(Class<?> clazz, String fieldName) {
-        var key = new MemberCacheKey.Field(clazz, fieldName);
-
-        return fieldCache.computeIfAbsent(key, k -> {
-            try {
-                Field newField = findFieldRecursiveImpl(k.clazz, k.name);
-                newField.setAccessible(true);
-                return Optional.of(newField);
-            } catch (NoSuchFieldException e) {
-                return Optional.empty();
-            }
-        }).orElseThrow(() -> new NoSuchFieldError(key.toString()));
+        var field = findFieldOrNull(clazz, fieldName);
+        if (field == null) throw new NoSuchFieldError(clazz.getName() + "#" + fieldName);
+        return field;
     }
 
     /**
@@ -255,11 +433,23 @@ public final class XposedHelpers {
      * @return A reference to the field, or {@code null} if it doesn't exist.
      */
     public static Field findFieldIfExists(Class<?> clazz, String fieldName) {
-        try {
-            return findField(clazz, fieldName);
-        } catch (NoSuchFieldError e) {
-            return null;
+        return findFieldOrNull(clazz, fieldName);
+    }
+
+    private static Field findFieldOrNull(Class<?> clazz, String fieldName) {
+        var members = members(clazz);
+        var field = members.get(members.fields, fieldName);
+        if (field == null) {
+            try {
+                Field newField = findFieldRecursiveImpl(clazz, fieldName);
+                newField.setAccessible(true);
+                field = Optional.of(newField);
+            } catch (NoSuchFieldException e) {
+                field = Optional.empty();
+            }
+            field = members.put(members.fields, fieldName, field);
         }
+        return field.orElse(null);
     }
 
     private static Field findFieldRecursiveImpl(Class<?> clazz, String fieldName) throws NoSuchFieldException {
@@ -404,8 +594,8 @@ public final class XposedHelpers {
      */
     public static Method findMethodExactIfExists(Class<?> clazz, String methodName, Object... parameterTypes) {
         try {
-            return findMethodExact(clazz, methodName, parameterTypes);
-        } catch (ClassNotFoundError | NoSuchMethodError e) {
+            return findMethodExactOrNull(clazz, methodName, getParameterClasses(clazz.getClassLoader(), parameterTypes));
+        } catch (ClassNotFoundError e) {
             return null;
         }
     }
@@ -442,8 +632,8 @@ public final class XposedHelpers {
      */
     public static Method findMethodExactIfExists(String className, ClassLoader classLoader, String methodName, Object... parameterTypes) {
         try {
-            return findMethodExact(className, classLoader, methodName, parameterTypes);
-        } catch (ClassNotFoundError | NoSuchMethodError e) {
+            return findMethodExactOrNull(findClass(className, classLoader), methodName, getParameterClasses(classLoader, parameterTypes));
+        } catch (ClassNotFoundError e) {
             return null;
         }
     }
@@ -455,17 +645,28 @@ public final class XposedHelpers {
      * <p>This variant requires that you already have reference to all the parameter types.
      */
     public static Method findMethodExact(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
-        var key = new MemberCacheKey.Method(clazz, methodName, parameterTypes, true);
+        var method = findMethodExactOrNull(clazz, methodName, parameterTypes);
+        if (method == null) {
+            throw new NoSuchMethodError(new MemberCacheKey.Method(methodName, parameterTypes, true).toString(clazz));
+        }
+        return method;
+    }
 
-        return methodCache.computeIfAbsent(key, k -> {
+    private static Method findMethodExactOrNull(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
+        var members = members(clazz);
+        var key = new MemberCacheKey.Method(methodName, parameterTypes, true);
+        var method = members.get(members.methods, key);
+        if (method == null) {
             try {
-                Method method = k.clazz.getDeclaredMethod(k.name, k.parameters);
-                method.setAccessible(true);
-                return Optional.of(method);
+                Method newMethod = clazz.getDeclaredMethod(methodName, parameterTypes);
+                newMethod.setAccessible(true);
+                method = Optional.of(newMethod);
             } catch (NoSuchMethodException e) {
-                return Optional.empty();
+                method = Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            method = members.put(members.methods, key, method);
+        }
+        return method.orElse(null);
     }
 
     /**
@@ -520,49 +721,53 @@ public final class XposedHelpers {
      * @throws NoSuchMethodError In case no suitable method was found.
      */
     public static Method findMethodBestMatch(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
-        // find the exact matching method first
-        try {
-            return findMethodExact(clazz, methodName, parameterTypes);
-        } catch (NoSuchMethodError ignored) {
-        }
-
-        // then find the best match
-        var key = new MemberCacheKey.Method(clazz, methodName, parameterTypes, false);
-
-        return methodCache.computeIfAbsent(key, k -> {
-            Method bestMatch = null;
-            Class<?> clz = k.clazz;
-            boolean considerPrivateMethods = true;
-            do {
-                for (Method method : clz.getDeclaredMethods()) {
-                    // don't consider private methods of superclasses
-                    if (!considerPrivateMethods && Modifier.isPrivate(method.getModifiers()))
-                        continue;
-
-                    // compare name and parameters
-                    if (method.getName().equals(k.name) && ClassUtils.isAssignable(
-                            k.parameters,
-                            method.getParameterTypes(),
-                            true)) {
-                        // get accessible version of method
-                        if (bestMatch == null || MemberUtilsX.compareMethodFit(
-                                method,
-                                bestMatch,
-                                k.parameters) < 0) {
-                            bestMatch = method;
-                        }
+        // the result is cached as a whole, so a hit doesn't look for the exact match first
+        var members = members(clazz);
+        var key = new MemberCacheKey.Method(methodName, parameterTypes, false);
+        var method = members.get(members.methods, key);
+        if (method == null) {
+            // find the exact matching method first
+            var exact = findMethodExactOrNull(clazz, methodName, parameterTypes);
+            // then find the best match
+            method = members.put(members.methods, key, exact != null ? Optional.of(exact) : findMethodBestMatchImpl(clazz, key));
+        }
+        if (!method.isPresent()) throw new NoSuchMethodError(key.toString(clazz));
+        return method.get();
+    }
+
+    private static Optional<Method> findMethodBestMatchImpl(Class<?> clazz, MemberCacheKey.Method k) {
+        Method bestMatch = null;
+        Class<?> clz = clazz;
+        boolean considerPrivateMethods = true;
+        do {
+            for (Method method : clz.getDeclaredMethods()) {
+                // don't consider private methods of superclasses
+                if (!considerPrivateMethods && Modifier.isPrivate(method.getModifiers()))
+                    continue;
+
+                // compare name and parameters
+                if (method.getName().equals(k.name) && ClassUtils.isAssignable(
+                        k.parameters,
+                        method.getParameterTypes(),
+                        true)) {
+                    // get accessible version of method
+                    if (bestMatch == null || MemberUtilsX.compareMethodFit(
+                            method,
+                            bestMatch,
+                            k.parameters) < 0) {
+                        bestMatch = method;
                     }
                 }
-                considerPrivateMethods = false;
-            } while ((clz = clz.getSuperclass()) != null);
-
-            if (bestMatch != null) {
-                bestMatch.setAccessible(true);
-                return Optional.of(bestMatch);
-            } else {
-                return Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            considerPrivateMethods = false;
+        } while ((clz = clz.getSuperclass()) != null);
+
+        if (bestMatch != null) {
+            bestMatch.setAccessible(true);
+            return Optional.of(bestMatch);
+        } else {
+            return Optional.empty();
+        }
     }
 
     /**
@@ -677,8 +882,8 @@ public final class XposedHelpers {
      */
     public static Constructor<?> findConstructorExactIfExists(Class<?> clazz, Object... parameterTypes) {
         try {
-            return findConstructorExact(clazz, parameterTypes);
-        } catch (ClassNotFoundError | NoSuchMethodError e) {
+            return findConstructorExactOrNull(clazz, getParameterClasses(clazz.getClassLoader(), parameterTypes));
+        } catch (ClassNotFoundError e) {
             return null;
         }
     }
@@ -697,8 +902,8 @@ public final class XposedHelpers {
      */
     public static Constructor<?> findConstructorExactIfExists(String className, ClassLoader classLoader, Object... parameterTypes) {
         try {
-            return findConstructorExact(className, classLoader, parameterTypes);
-        } catch (ClassNotFoundError | NoSuchMethodError e) {
+            return findConstructorExactOrNull(findClass(className, classLoader), getParameterClasses(classLoader, parameterTypes));
+        } catch (ClassNotFoundError e) {
             return null;
         }
     }
@@ -708,17 +913,28 @@ public final class XposedHelpers {
      * See {@link #findMethodExact(String, ClassLoader, String, Object...)} for details.
      */
     public static Constructor<?> findConstructorExact(Class<?> clazz, Class<?>... parameterTypes) {
-        var key = new MemberCacheKey.Constructor(clazz, parameterTypes, true);
+        var constructor = findConstructorExactOrNull(clazz, parameterTypes);
+        if (constructor == null) {
+            throw new NoSuchMethodError(new MemberCacheKey.Constructor(parameterTypes, true).toString(clazz));
+        }
+        return constructor;
+    }
 
-        return constructorCache.computeIfAbsent(key, k -> {
+    private static Constructor<?> findConstructorExactOrNull(Class<?> clazz, Class<?>... parameterTypes) {
+        var members = members(clazz);
+        var key = new MemberCacheKey.Constructor(parameterTypes, true);
+        var constructor = members.get(members.constructors, key);
+        if (constructor == null) {
             try {
-                Constructor<?> constructor = k.clazz.getDeclaredConstructor(k.parameters);
-                constructor.setAccessible(true);
-                return Optional.of(constructor);
+                Constructor<?> newConstructor = clazz.getDeclaredConstructor(parameterTypes);
+                newConstructor.setAccessible(true);
+                constructor = Optional.of(newConstructor);
             } catch (NoSuchMethodException e) {
-                return Optional.empty();
+                constructor = Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            constructor = members.put(members.constructors, key, constructor);
+        }
+        return constructor.orElse(null);
     }
 
     /**
@@ -749,41 +965,45 @@ public final class XposedHelpers {
      * <p>See {@link #findMethodBestMatch(Class, String, Class...)} for details.
      */
     public static Constructor<?> findConstructorBestMatch(Class<?> clazz, Class<?>... parameterTypes) {
-        // find the exact matching constructor first
-        try {
-            return findConstructorExact(clazz, parameterTypes);
-        } catch (NoSuchMethodError ignored) {
-        }
-
-        // then find the best match
-        var key = new MemberCacheKey.Constructor(clazz, parameterTypes, false);
-
-        return constructorCache.computeIfAbsent(key, k -> {
-            Constructor<?> bestMatch = null;
-            Constructor<?>[] constructors = k.clazz.getDeclaredConstructors();
-            for (Constructor<?> constructor : constructors) {
-                // compare name and parameters
-                if (ClassUtils.isAssignable(
-                        k.parameters,
-                        constructor.getParameterTypes(),
-                        true)) {
-                    // get accessible version of method
-                    if (bestMatch == null || MemberUtilsX.compareConstructorFit(
-                            constructor,
-                            bestMatch,
-                            k.parameters) < 0) {
-                        bestMatch = constructor;
-                    }
+        // the result is cached as a whole, so a hit doesn't look for the exact match first
+        var members = members(clazz);
+        var key = new MemberCacheKey.Constructor(parameterTypes, false);
+        var constructor = members.get(members.constructors, key);
+        if (constructor == null) {
+            // find the exact matching constructor first
+            var exact = findConstructorExactOrNull(clazz, parameterTypes);
+            // then find the best match
+            constructor = members.put(members.constructors, key, exact != null ? Optional.<Constructor<?>>of(exact) : findConstructorBestMatchImpl(clazz, key));
+        }
+        if (!constructor.isPresent()) throw new NoSuchMethodError(key.toString(clazz));
+        return constructor.get();
+    }
+
+    private static Optional<Constructor<?>> findConstructorBestMatchImpl(Class<?> clazz, MemberCacheKey.Constructor k) {
+        Constructor<?> bestMatch = null;
+        Constructor<?>[] constructors = clazz.getDeclaredConstructors();
+        for (Constructor<?> constructor : constructors) {
+            // compare name and parameters
+            if (ClassUtils.isAssignable(
+                    k.parameters,
+                    constructor.getParameterTypes(),
+                    true)) {
+                // get accessible version of method
+                if (bestMatch == null || MemberUtilsX.compareConstructorFit(
+                        constructor,
+                        bestMatch,
+                        k.parameters) < 0) {
+                    bestMatch = constructor;
                 }
             }
+        }
 
-            if (bestMatch != null) {
-                bestMatch.setAccessible(true);
-                return Optional.of(bestMatch);
-            } else {
-                return Optional.empty();
-            }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+        if (bestMatch != null) {
+            bestMatch.setAccessible(true);
+            return Optional.of(bestMatch);
+        } else {
+            return Optional.empty();
+        }
     }
 
     /**
@@ -1615,18 +1835,9 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null) {
-                objectFields = new HashMap<>();
-                additionalFields.put(obj, objectFields);
-            }
-        }
-
-        synchronized (objectFields) {
-            return objectFields.put(key, value);
-        }
+        var objectFields = additionalFields.getOrCreate(obj).objects;
+        // ConcurrentHashMap does not take null values, storing null is the same as removing
+        return value == null ? objectFields.remove(key) : objectFields.put(key, value);
     }
 
     /**
@@ -1642,20 +1853,13 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
-
-        synchronized (objectFields) {
-            return objectFields.get(key);
-        }
+        var fields = additionalFields.get(obj);
+        return fields == null ? null : fields.objects.get(key);
     }
 
     /**
      * Removes and returns a value which was stored with {@link #setAdditionalInstanceField}.
+     * Primitive values stored with the same key are removed as well.
      *
      * @param obj The object instance for which the value has been stored.
      * @param key The key in the value map for this object instance.
@@ -1667,16 +1871,72 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
+        var fields = additionalFields.get(obj);
+        if (fields == null)
+            return null;
+        fields.primitives.remove(key);
+        return fields.objects.remove(key);
+    }
 
-        synchronized (objectFields) {
-            return objectFields.remove(key);
+    /**
+     * Attaches a {@code long} to an object instance without boxing it. Primitive values are kept
+     * apart from the ones stored with {@link #setAdditionalInstanceField}, and can be retrieved
+     * again with {@link #getAdditionalInstanceLongField}.
+     *
+     * @param obj   The object instance for which the value should be stored.
+     * @param key   The key in the value map for this object instance.
+     * @param value The value to store.
+     * @return The previously stored value for this instance/key combination, or {@code 0} if there was none.
+     */
+    public static long setAdditionalInstanceLongField(Object obj, String key, long value) {
+        if (obj == null)
+            throw new NullPointerException("object must not be null");
+        if (key == null)
+            throw new NullPointerException("key must not be null");
+
+        var primitives = additionalFields.getOrCreate(obj).primitives;
+        var holder = primitives.get(key);
+        if (holder == null) {
+            holder = primitives.putIfAbsent(key, new AtomicLong(value));
+            if (holder == null)
+                return 0;
         }
+        return holder.getAndSet(value);
+    }
+
+    /**
+     * Returns a value which was stored with {@link #setAdditionalInstanceLongField}.
+     *
+     * @param obj          The object instance for which the value has been stored.
+     * @param key          The key in the value map for this object instance.
+     * @param defaultValue The value to return if nothing has been stored.
+     * @return The stored value for this instance/key combination, or {@code defaultValue} if there is none.
+     */
+    public static long getAdditionalInstanceLongField(Object obj, String key, long defaultValue) {
+        if (obj == null)
+            throw new NullPointerException("object must not be null");
+        if (key == null)
+            throw new NullPointerException("key must not be null");
+
+        var fields = additionalFields.get(obj);
+        if (fields == null)
+            return defaultValue;
+        var holder = fields.primitives.get(key);
+        return holder == null ? defaultValue : holder.get();
+    }
+
+    /**
+     * Like {@link #setAdditionalInstanceLongField}, but for {@code int} values.
+     */
+    public static int setAdditionalInstanceIntField(Object obj, String key, int value) {
+        return (int) setAdditionalInstanceLongField(obj, key, value);
+    }
+
+    /**
+     * Like {@link #getAdditionalInstanceLongField}, but for {@code int} values.
+     */
+    public static int getAdditionalInstanceIntField(Object obj, String key, int defaultValue) {
+        return (int) getAdditionalInstanceLongField(obj, key, defaultValue);
     }
 
     /**
@@ -41,7 +41,9 @@ import android.os.Process;
 import android.util.ArrayMap;
 import android.util.Log;
 
+import org.lsposed.lspd.impl.HookProfiler;
 import org.lsposed.lspd.impl.LSPosedContext;
+import org.lsposed.lspd.models.Module;
 import org.lsposed.lspd.models.PreLoadedApk;
 import org.lsposed.lspd.nativebridge.NativeAPI;
 import org.lsposed.lspd.nativebridge.ResourcesHook;
@@ -56,14 +58,20 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import de.robv.android.xposed.callbacks.XC_InitPackageResources;
 import de.robv.android.xposed.callbacks.XCallback;
 import hidden.HiddenApiBridge;
+import io.github.libxposed.api.XposedModule;
 
 public final class XposedInit {
     private static final String TAG = XposedBridge.TAG;
+    private static final int MAX_MODULE_LOADER_THREADS = 4;
     public static boolean startsSystemServer = false;
 
     public static volatile boolean disableResources = false;
@@ -223,29 +231,113 @@ public final class XposedInit {
         return loadedModules;
     }
 
+    // legacy modules that read their preferences with the new XSharedPreferences,
+    // decided by the daemon from xposedminversion and xposedsharedprefs
+    private static final Set<String> newXSPModules = ConcurrentHashMap.newKeySet();
+
+    public static boolean isNewXSPModule(String packageName) {
+        return newXSPModules.contains(packageName);
+    }
+
     public static void loadLegacyModules() {
         var moduleList = serviceClient.getLegacyModulesList();
-        moduleList.forEach(module -> {
+        var classLoaders = createModuleClassLoaders(moduleList, XposedInit.class.getClassLoader());
+        // initialize in the original order, it decides the order of the callbacks
+        for (int i = 0; i < moduleList.size(); i++) {
+            var module = moduleList.get(i);
             var apk = module.apkPath;
             var name = module.packageName;
             var file = module.file;
             loadedModules.put(name, Optional.of(apk)); // temporarily add it for XSharedPreference
-            if (!loadModule(name, apk, file)) {
+            if (module.xposedMinVersion > 92 || module.xposedSharedPrefs) {
+                newXSPModules.add(name);
+            }
+            var start = System.nanoTime();
+            if (!loadModule(name, apk, file, classLoaders.get(i))) {
                 loadedModules.remove(name);
+                newXSPModules.remove(name);
             }
-        });
+            HookProfiler.recordStartup(name, HookProfiler.PHASE_INIT, System.nanoTime() - start);
+        }
     }
 
     public static void loadModules(ActivityThread at) {
         var packages = (ArrayMap<?, ?>) XposedHelpers.getObjectField(at, "mPackages");
-        serviceClient.getModulesList().forEach(module -> {
+        var moduleList = serviceClient.getModulesList();
+        var classLoaders = createModuleClassLoaders(moduleList, XposedModule.class.getClassLoader());
+        for (int i = 0; i < moduleList.size(); i++) {
+            var module = moduleList.get(i);
             loadedModules.put(module.packageName, Optional.empty());
-            if (!LSPosedContext.loadModule(at, module)) {
+            var start = System.nanoTime();
+            if (!LSPosedContext.loadModule(at, module, classLoaders.get(i))) {
                 loadedModules.remove(module.packageName);
             } else {
                 packages.remove(module.packageName);
             }
-        });
+            HookProfiler.recordStartup(module.packageName, HookProfiler.PHASE_INIT, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Create the class loaders of all modules at once. This maps the dexes and resolves the entry
+     * classes, which is the slow part of loading a module and does not depend on other modules.
+     * Returns null in place of a module that cannot be loaded.
+     */
+    private static List<ClassLoader> createModuleClassLoaders(List<Module> moduleList, ClassLoader initLoader) {
+        var threads = Math.min(Math.min(moduleList.size(), Runtime.getRuntime().availableProcessors()), MAX_MODULE_LOADER_THREADS);
+        if (threads < 2) {
+            return moduleList.stream().map(module -> createModuleClassLoader(module, initLoader)).collect(Collectors.toList());
+        }
+        // threads of its own that end with loading, rather than a common pool kept by every hooked process
+        var executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, "LSPosed-ModuleLoader"));
+        try {
+            var futures = new ArrayList<Future<ClassLoader>>(moduleList.size());
+            for (var module : moduleList) {
+                futures.add(executor.submit(() -> createModuleClassLoader(module, initLoader)));
+            }
+            var classLoaders = new ArrayList<ClassLoader>(futures.size());
+            for (var future : futures) {
+                try {
+                    classLoaders.add(future.get());
+                } catch (ExecutionException e) {
+                    classLoaders.add(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    classLoaders.add(null);
+                }
+            }
+            return classLoaders;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ClassLoader createModuleClassLoader(Module module, ClassLoader initLoader) {
+        var start = System.nanoTime();
+        try {
+            var sb = new StringBuilder();
+            var abis = Process.is64Bit() ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
+            for (String abi : abis) {
+                sb.append(module.apkPath).append("!/lib/").append(abi).append(File.pathSeparator);
+            }
+            var librarySearchPath = sb.toString();
+            var mcl = LspModuleClassLoader.loadApk(module.apkPath, module.file.preLoadedDexes,
+                    module.file.compiledDexPath, librarySearchPath, initLoader);
+            HookProfiler.registerModule(mcl, module.packageName);
+            for (var className : module.file.moduleClassNames) {
+                try {
+                    Class.forName(className, false, mcl);
+                } catch (Throwable ignored) {
+                    // reported when the module is initialized
+                }
+            }
+            return mcl;
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to create class loader of " + module.packageName, t);
+            return null;
+        } finally {
+            HookProfiler.recordStartup(module.packageName, HookProfiler.PHASE_LOAD, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -300,19 +392,11 @@ public final class XposedInit {
      * Load a module from an APK by calling the init(String) method for all classes defined
      * in <code>assets/xposed_init</code>.
      */
-    private static boolean loadModule(String name, String apk, PreLoadedApk file) {
+    private static boolean loadModule(String name, String apk, PreLoadedApk file, ClassLoader mcl) {
         Log.i(TAG, "Loading legacy module " + name + " from " + apk);
-
-        var sb = new StringBuilder();
-        var abis = Process.is64Bit() ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
-        for (String abi : abis) {
-            sb.append(apk).append("!/lib/").append(abi).append(File.pathSeparator);
-        }
-        var librarySearchPath = sb.toString();
+        if (mcl == null) return false;
 
         var initLoader = XposedInit.class.getClassLoader();
-        var mcl = LspModuleClassLoader.loadApk(apk, file.preLoadedDexes, librarySearchPath, initLoader);
-
         try {
             if (mcl.loadClass(XposedBridge.class.getName()).getClassLoader() != initLoader) {
                 Log.e(TAG, "  Cannot load module: " + name);
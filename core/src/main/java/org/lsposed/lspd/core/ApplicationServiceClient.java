@@ -21,12 +21,16 @@ package org.lsposed.lspd.core;
 
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
 
+import org.lsposed.lspd.models.HookStats;
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
 import org.lsposed.lspd.service.ILSPApplicationService;
 import org.lsposed.lspd.util.Utils;
 
@@ -34,6 +38,8 @@ import java.util.Collections;
 import java.util.List;
 
 public class ApplicationServiceClient implements ILSPApplicationService, IBinder.DeathRecipient {
+    private static final int HOOK_PROFILER_TRANSACTION_CODE = 1212895814;
+
     public static ApplicationServiceClient serviceClient = null;
 
     final ILSPApplicationService service;
@@ -93,6 +99,26 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
         return null;
     }
 
+    // Reports the cumulative stats of this process, returns whether profiling is still enabled
+    public boolean reportHookStats(List<HookStats> stats, List<ModuleStartupStats> startup, ReflectionCacheStats cache) {
+        var data = Parcel.obtain();
+        var reply = Parcel.obtain();
+        try {
+            data.writeTypedList(stats);
+            data.writeTypedList(startup);
+            data.writeTypedObject(cache, 0);
+            if (!service.asBinder().transact(HOOK_PROFILER_TRANSACTION_CODE, data, reply, 0)) {
+                return false;
+            }
+            return reply.readInt() != 0;
+        } catch (RemoteException | NullPointerException ignored) {
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+        return false;
+    }
+
     @Override
     public IBinder asBinder() {
         return service.asBinder();
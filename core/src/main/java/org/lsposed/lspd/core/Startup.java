@@ -34,6 +34,7 @@ import org.lsposed.lspd.hooker.HandleSystemServerProcessHooker;
 import org.lsposed.lspd.hooker.LoadedApkCtorHooker;
 import org.lsposed.lspd.hooker.LoadedApkCreateCLHooker;
 import org.lsposed.lspd.hooker.OpenDexFileHooker;
+import org.lsposed.lspd.impl.HookProfiler;
 import org.lsposed.lspd.impl.LSPosedContext;
 import org.lsposed.lspd.impl.LSPosedHelper;
 import org.lsposed.lspd.service.ILSPApplicationService;
@@ -66,6 +67,7 @@ public class Startup {
     public static void bootstrapXposed() {
         // Initialize the Xposed framework
         try {
+            HookProfiler.start();
             startBootstrapHook(XposedInit.startsSystemServer);
             XposedInit.loadLegacyModules();
         } catch (Throwable t) {
@@ -73,9 +75,10 @@ public class Startup {
         }
     }
 
-    public static void initXposed(boolean isSystem, String processName, String appDir, ILSPApplicationService service) {
+    public static void initXposed(boolean isSystem, String processName, String appDir, ILSPApplicationService service, boolean hookProfiler) {
         // init logger
         ApplicationServiceClient.Init(service, processName);
+        HookProfiler.enabled = hookProfiler;
         XposedBridge.initXResources();
         XposedInit.startsSystemServer = isSystem;
         LSPosedContext.isSystemServer = isSystem;
@@ -30,15 +30,13 @@ import android.os.Build;
 
 import androidx.annotation.NonNull;
 
+import org.lsposed.lspd.impl.HookProfiler;
 import org.lsposed.lspd.impl.LSPosedContext;
 import org.lsposed.lspd.util.Hookers;
-import org.lsposed.lspd.util.MetaDataReader;
 import org.lsposed.lspd.util.Utils;
 
 import java.io.File;
-import java.io.IOException;
 import java.lang.reflect.Field;
-import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -164,6 +162,7 @@ public class LoadedApkCreateCLHooker implements XposedInterface.Hooker {
                     return isFirstPackage;
                 }
             });
+            if (isFirstPackage) HookProfiler.reportSoon();
         } catch (Throwable t) {
             Hookers.logE("error when hooking LoadedApk#createClassLoader", t);
         } finally {
@@ -172,22 +171,7 @@ public class LoadedApkCreateCLHooker implements XposedInterface.Hooker {
     }
 
     private static void hookNewXSP(XC_LoadPackage.LoadPackageParam lpparam) {
-        int xposedminversion = -1;
-        boolean xposedsharedprefs = false;
-        try {
-            Map<String, Object> metaData = MetaDataReader.getMetaData(new File(lpparam.appInfo.sourceDir));
-            Object minVersionRaw = metaData.get("xposedminversion");
-            if (minVersionRaw instanceof Integer) {
-                xposedminversion = (Integer) minVersionRaw;
-            } else if (minVersionRaw instanceof String) {
-                xposedminversion = MetaDataReader.extractIntPart((String) minVersionRaw);
-            }
-            xposedsharedprefs = metaData.containsKey("xposedsharedprefs");
-        } catch (NumberFormatException | IOException e) {
-            Hookers.logE("ApkParser fails", e);
-        }
-
-        if (xposedminversion > 92 || xposedsharedprefs) {
+        if (XposedInit.isNewXSPModule(lpparam.packageName)) {
             Utils.logI("New modules detected, hook preferences");
             XposedHelpers.findAndHookMethod("android.app.ContextImpl", lpparam.classLoader, "checkMode", int.class, new XC_MethodHook() {
                 @Override
@@ -0,0 +1,216 @@
+package org.lsposed.lspd.impl;
+
+import org.lsposed.lspd.core.ApplicationServiceClient;
+import org.lsposed.lspd.models.HookStats;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
+import org.lsposed.lspd.util.Utils;
+
+import java.lang.reflect.Executable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.robv.android.xposed.XposedHelpers;
+
+/**
+ * Opt-in per hook instrumentation. When disabled, hooked calls only pay for reading
+ * {@link #enabled}; nothing is allocated and no clock is read.
+ */
+public class HookProfiler {
+    public static final int BUCKETS = 32;
+    public static final int PHASE_LOAD = 0;
+    public static final int PHASE_INIT = 1;
+    public static final int PHASE_PACKAGE_LOADED = 2;
+    private static final int PHASES = 3;
+    private static final long REPORT_INTERVAL_MS = 30 * 1000;
+
+    public static volatile boolean enabled = false;
+
+    private static final Map<Executable, MethodStats> methods = new ConcurrentHashMap<>();
+    // module class loader -> module package name
+    private static final Map<ClassLoader, String> modules = new WeakHashMap<>();
+    // module package name -> nanos spent in each startup phase
+    private static final Map<String, AtomicLongArray> startup = new ConcurrentHashMap<>();
+
+    private static final Object reportLock = new Object();
+    private static Thread reporter = null;
+
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        public void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+            var bucket = elapsed <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(elapsed));
+            histogram.incrementAndGet(bucket);
+        }
+
+        private long[] histogram() {
+            var result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                result[i] = histogram.get(i);
+            }
+            return result;
+        }
+    }
+
+    public static final class CallbackStats {
+        private final Object callback;
+        public final Counter before = new Counter();
+        public final Counter after = new Counter();
+
+        private CallbackStats(Object callback) {
+            this.callback = callback;
+        }
+    }
+
+    public static final class MethodStats {
+        private final Executable method;
+        public final Counter original = new Counter();
+        private final Map<Object, CallbackStats> callbacks = new ConcurrentHashMap<>();
+
+        private MethodStats(Executable method) {
+            this.method = method;
+        }
+
+        public CallbackStats of(Object callback) {
+            var stats = callbacks.get(callback);
+            if (stats == null) {
+                stats = callbacks.computeIfAbsent(callback, CallbackStats::new);
+            }
+            return stats;
+        }
+    }
+
+    public static MethodStats of(Executable method) {
+        var stats = methods.get(method);
+        if (stats == null) {
+            stats = methods.computeIfAbsent(method, MethodStats::new);
+        }
+        return stats;
+    }
+
+    public static void registerModule(ClassLoader classLoader, String packageName) {
+        synchronized (modules) {
+            modules.put(classLoader, packageName);
+        }
+    }
+
+    public static void recordStartup(String module, int phase, long nanos) {
+        if (!enabled || module == null) return;
+        startup.computeIfAbsent(module, k -> new AtomicLongArray(PHASES)).addAndGet(phase, nanos);
+    }
+
+    public static void recordStartup(Class<?> cls, int phase, long nanos) {
+        if (!enabled) return;
+        recordStartup(moduleOf(cls), phase, nanos);
+    }
+
+    // report without waiting for the next interval, so short-lived processes are not missed
+    public static void reportSoon() {
+        if (!enabled) return;
+        synchronized (reportLock) {
+            reportLock.notifyAll();
+        }
+    }
+
+    private static Class<?> classOf(Object callback) {
+        if (callback instanceof LSPosedBridge.HookerCallback) {
+            var hooker = (LSPosedBridge.HookerCallback) callback;
+            var cls = hooker.beforeInvocation.getDeclaringClass();
+            // one of them may be LSPosedBridge.dummyCallback
+            return cls == LSPosedBridge.class ? hooker.afterInvocation.getDeclaringClass() : cls;
+        }
+        return callback.getClass();
+    }
+
+    private static String moduleOf(Class<?> cls) {
+        var classLoader = cls.getClassLoader();
+        if (classLoader == null) return null;
+        synchronized (modules) {
+            return modules.get(classLoader);
+        }
+    }
+
+    public static List<HookStats> snapshot() {
+        var result = new ArrayList<HookStats>();
+        for (var method : methods.values()) {
+            var member = method.method.toString();
+            var stats = new HookStats();
+            stats.member = member;
+            stats.calls = method.original.count.sum();
+            stats.originalNanos = method.original.nanos.sum();
+            stats.histogram = method.original.histogram();
+            result.add(stats);
+            for (var callback : method.callbacks.values()) {
+                var cls = classOf(callback.callback);
+                stats = new HookStats();
+                stats.member = member;
+                stats.module = moduleOf(cls);
+                stats.callback = cls.getName();
+                stats.calls = callback.before.count.sum();
+                stats.beforeNanos = callback.before.nanos.sum();
+                stats.afterNanos = callback.after.nanos.sum();
+                stats.histogram = callback.before.histogram();
+                var after = callback.after.histogram();
+                for (int i = 0; i < BUCKETS; i++) {
+                    stats.histogram[i] += after[i];
+                }
+                result.add(stats);
+            }
+        }
+        return result;
+    }
+
+    public static ReflectionCacheStats cacheSnapshot() {
+        var cacheStats = XposedHelpers.getCacheStats();
+        var stats = new ReflectionCacheStats();
+        stats.hits = cacheStats.hits;
+        stats.misses = cacheStats.misses;
+        stats.members = cacheStats.members;
+        stats.classes = cacheStats.classes;
+        return stats;
+    }
+
+    public static List<ModuleStartupStats> startupSnapshot() {
+        var result = new ArrayList<ModuleStartupStats>();
+        startup.forEach((module, phases) -> {
+            var stats = new ModuleStartupStats();
+            stats.module = module;
+            stats.launches = 1;
+            stats.loadNanos = phases.get(PHASE_LOAD);
+            stats.initNanos = phases.get(PHASE_INIT);
+            stats.packageLoadedNanos = phases.get(PHASE_PACKAGE_LOADED);
+            result.add(stats);
+        });
+        return result;
+    }
+
+    // enabled along with the startup transactions of the process
+    public static synchronized void start() {
+        if (!enabled || reporter != null) return;
+        reporter = new Thread(() -> {
+            while (enabled) {
+                try {
+                    synchronized (reportLock) {
+                        reportLock.wait(REPORT_INTERVAL_MS);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                var serviceClient = ApplicationServiceClient.serviceClient;
+                enabled = serviceClient != null && serviceClient.reportHookStats(snapshot(), startupSnapshot(), cacheSnapshot());
+            }
+            Utils.logD("hook profiler stopped");
+        }, "LSPosed-HookProfiler");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
@@ -6,11 +6,15 @@ import androidx.annotation.NonNull;
 
 import org.lsposed.lspd.nativebridge.HookBridge;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Executable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 
+import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XposedBridge;
 import io.github.libxposed.api.XposedInterface;
 import io.github.libxposed.api.annotations.AfterInvocation;
@@ -37,19 +41,43 @@ public class LSPosedBridge {
     }
 
     public static class HookerCallback {
+        private static final MethodType beforeType = MethodType.methodType(Object.class, LSPosedHookCallback.class);
+        private static final MethodType afterType = MethodType.methodType(void.class, LSPosedHookCallback.class, Object.class);
+
         @NonNull
         final Method beforeInvocation;
         @NonNull
         final Method afterInvocation;
 
-        final int beforeParams;
-        final int afterParams;
+        // (LSPosedHookCallback)Object, whatever the shape of the @BeforeInvocation method
+        @NonNull
+        final MethodHandle beforeHandle;
+        // (LSPosedHookCallback, Object)void, whatever the shape of the @AfterInvocation method
+        @NonNull
+        final MethodHandle afterHandle;
 
-        public HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation) {
+        // false if the hooker left the callback to LSPosedBridge.dummyCallback
+        final boolean hasBefore;
+        final boolean hasAfter;
+
+        public HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation) throws IllegalAccessException {
             this.beforeInvocation = beforeInvocation;
             this.afterInvocation = afterInvocation;
-            this.beforeParams = beforeInvocation.getParameterCount();
-            this.afterParams = afterInvocation.getParameterCount();
+            this.beforeHandle = adapt(beforeInvocation, beforeType);
+            this.afterHandle = adapt(afterInvocation, afterType);
+            this.hasBefore = beforeInvocation.getDeclaringClass() != LSPosedBridge.class;
+            this.hasAfter = afterInvocation.getDeclaringClass() != LSPosedBridge.class;
+        }
+
+        private static MethodHandle adapt(Method method, MethodType type) throws IllegalAccessException {
+            method.setAccessible(true);
+            var handle = MethodHandles.lookup().unreflect(method);
+            var params = method.getParameterCount();
+            if (params < type.parameterCount()) {
+                var dropped = type.parameterList().subList(params, type.parameterCount());
+                handle = MethodHandles.dropArguments(handle, params, dropped);
+            }
+            return handle.asType(type);
         }
     }
 
@@ -63,8 +91,14 @@ public class LSPosedBridge {
     }
 
     public static class NativeHooker<T extends Executable> {
+        private static final Object[] EMPTY_CONTEXT = new Object[0];
+        private static final Object[][] EMPTY_SNAPSHOT = new Object[][]{EMPTY_CONTEXT, EMPTY_CONTEXT};
+
         private final Object params;
 
+        // Immutable {modern, legacy} callbacks republished by native whenever the hook changes
+        private volatile Object[][] snapshot = EMPTY_SNAPSHOT;
+
         private NativeHooker(Executable method) {
             var isStatic = Modifier.isStatic(method.getModifiers());
             Object returnType;
@@ -83,41 +117,54 @@ public class LSPosedBridge {
         // This method is quite critical. We should try not to use system methods to avoid
         // endless recursive
         public Object callback(Object[] args) throws Throwable {
-            LSPosedHookCallback<T> callback = new LSPosedHookCallback<>();
-
             var array = ((Object[]) params);
 
             var method = (T) array[0];
             var returnType = (Class<?>) array[1];
             var isStatic = (Boolean) array[2];
 
-            callback.method = method;
-
+            Object thisObject;
+            Object[] methodArgs;
             if (isStatic) {
-                callback.thisObject = null;
-                callback.args = args;
+                thisObject = null;
+                methodArgs = args;
             } else {
-                callback.thisObject = args[0];
-                callback.args = new Object[args.length - 1];
+                thisObject = args[0];
+                methodArgs = new Object[args.length - 1];
                 //noinspection ManualArrayCopy
                 for (int i = 0; i < args.length - 1; ++i) {
-                    callback.args[i] = args[i + 1];
+                    methodArgs[i] = args[i + 1];
                 }
             }
 
-            Object[][] callbacksSnapshot = HookBridge.callbackSnapshot(HookerCallback.class, method);
+            Object[][] callbacksSnapshot = snapshot;
             Object[] modernSnapshot = callbacksSnapshot[0];
             Object[] legacySnapshot = callbacksSnapshot[1];
 
             if (modernSnapshot.length == 0 && legacySnapshot.length == 0) {
                 try {
-                    return HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
+                    return HookBridge.invokeOriginalMethod(method, thisObject, methodArgs);
                 } catch (InvocationTargetException ite) {
                     throw (Throwable) HookBridge.invokeOriginalMethod(getCause, ite);
                 }
             }
 
-            Object[] ctxArray = new Object[modernSnapshot.length];
+            var stats = HookProfiler.enabled ? HookProfiler.of(method) : null;
+
+            if (modernSnapshot.length == 0 && legacySnapshot.length == 1) {
+                return singleLegacyCallback(method, thisObject, methodArgs, (XC_MethodHook) legacySnapshot[0], returnType, stats);
+            }
+
+            LSPosedHookCallback<T> callback = new LSPosedHookCallback<>();
+            callback.method = method;
+            callback.thisObject = thisObject;
+            callback.args = methodArgs;
+
+            if (modernSnapshot.length == 1 && legacySnapshot.length == 0) {
+                return singleCallback(method, callback, (HookerCallback) modernSnapshot[0], returnType, stats);
+            }
+
+            Object[] ctxArray = modernSnapshot.length == 0 ? EMPTY_CONTEXT : new Object[modernSnapshot.length];
             XposedBridge.LegacyApiSupport<T> legacy = null;
 
             // call "before method" callbacks
@@ -125,11 +172,7 @@ public class LSPosedBridge {
             for (beforeIdx = 0; beforeIdx < modernSnapshot.length; beforeIdx++) {
                 try {
                     var hooker = (HookerCallback) modernSnapshot[beforeIdx];
-                    if (hooker.beforeParams == 0) {
-                        ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null);
-                    } else {
-                        ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null, callback);
-                    }
+                    ctxArray[beforeIdx] = callBefore(hooker, callback, stats);
                 } catch (Throwable t) {
                     LSPosedBridge.log(t);
 
@@ -148,51 +191,173 @@ public class LSPosedBridge {
 
             if (!callback.isSkipped && legacySnapshot.length != 0) {
                 // TODO: Separate classloader
-                legacy = new XposedBridge.LegacyApiSupport<>(callback, legacySnapshot);
+                legacy = new XposedBridge.LegacyApiSupport<>(callback, legacySnapshot, stats);
                 legacy.handleBefore();
             }
 
             // call original method if not requested otherwise
             if (!callback.isSkipped) {
-                try {
-                    var result = HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
-                    callback.setResult(result);
-                } catch (InvocationTargetException e) {
-                    var throwable = (Throwable) HookBridge.invokeOriginalMethod(getCause, e);
-                    callback.setThrowable(throwable);
-                }
+                invokeOriginal(method, callback, stats);
             }
 
             // call "after method" callbacks
             for (int afterIdx = beforeIdx - 1; afterIdx >= 0; afterIdx--) {
-                Object lastResult = callback.getResult();
-                Throwable lastThrowable = callback.getThrowable();
-                var hooker = (HookerCallback) modernSnapshot[afterIdx];
+                callAfter((HookerCallback) modernSnapshot[afterIdx], callback, ctxArray[afterIdx], stats);
+            }
+
+            if (legacy != null) {
+                legacy.handleAfter();
+            }
+
+            return returnResult(callback, returnType);
+        }
+
+        // Same semantics as the generic loop above, specialized for the common case of a single
+        // modern callback so that no context array and no legacy bridge has to be allocated.
+        // A missing before or after callback is not called at all unless it is being profiled.
+        private Object singleCallback(T method, LSPosedHookCallback<T> callback, HookerCallback hooker, Class<?> returnType,
+                                      HookProfiler.MethodStats stats) throws Throwable {
+            Object ctx = null;
+            if (hooker.hasBefore || stats != null) {
                 try {
-                    if (hooker.afterParams == 0) {
-                        hooker.afterInvocation.invoke(null);
-                    } else if (hooker.afterParams == 1) {
-                        hooker.afterInvocation.invoke(null, callback);
-                    } else {
-                        hooker.afterInvocation.invoke(null, callback, ctxArray[afterIdx]);
-                    }
+                    ctx = callBefore(hooker, callback, stats);
                 } catch (Throwable t) {
                     LSPosedBridge.log(t);
 
-                    // reset to last result (ignoring what the unexpectedly exiting callback did)
-                    if (lastThrowable == null) {
-                        callback.setResult(lastResult);
-                    } else {
-                        callback.setThrowable(lastThrowable);
-                    }
+                    // reset result (ignoring what the unexpectedly exiting callback did)
+                    callback.setResult(null);
+                    callback.isSkipped = false;
                 }
             }
 
-            if (legacy != null) {
-                legacy.handleAfter();
+            if (!callback.isSkipped) {
+                invokeOriginal(method, callback, stats);
             }
 
-            // return
+            if (hooker.hasAfter || stats != null) {
+                callAfter(hooker, callback, ctx, stats);
+            }
+
+            return returnResult(callback, returnType);
+        }
+
+        // Same semantics as XposedBridge.LegacyApiSupport, specialized for the common case of a single
+        // legacy callback, which works on the MethodHookParam directly instead of syncing it with a
+        // LSPosedHookCallback
+        private Object singleLegacyCallback(T method, Object thisObject, Object[] args, XC_MethodHook cb, Class<?> returnType,
+                                            HookProfiler.MethodStats stats) throws Throwable {
+            var param = new XC_MethodHook.MethodHookParam<T>();
+            param.method = method;
+            param.thisObject = thisObject;
+            param.args = args;
+
+            var start = stats == null ? 0 : System.nanoTime();
+            try {
+                cb.callBeforeHookedMethod(param);
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+
+                // reset result (ignoring what the unexpectedly exiting callback did)
+                param.setResult(null);
+                param.returnEarly = false;
+            } finally {
+                if (stats != null) {
+                    stats.of(cb).before.record(System.nanoTime() - start);
+                }
+            }
+
+            if (!param.returnEarly) {
+                start = stats == null ? 0 : System.nanoTime();
+                try {
+                    param.setResult(HookBridge.invokeOriginalMethod(method, param.thisObject, param.args));
+                } catch (InvocationTargetException e) {
+                    param.setThrowable((Throwable) HookBridge.invokeOriginalMethod(getCause, e));
+                }
+                if (stats != null) {
+                    stats.original.record(System.nanoTime() - start);
+                }
+            }
+
+            Object lastResult = param.getResult();
+            Throwable lastThrowable = param.getThrowable();
+            start = stats == null ? 0 : System.nanoTime();
+            try {
+                cb.callAfterHookedMethod(param);
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+
+                // reset to last result (ignoring what the unexpectedly exiting callback did)
+                if (lastThrowable == null) {
+                    param.setResult(lastResult);
+                } else {
+                    param.setThrowable(lastThrowable);
+                }
+            }
+            if (stats != null) {
+                stats.of(cb).after.record(System.nanoTime() - start);
+            }
+
+            var t = param.getThrowable();
+            if (t != null) {
+                throw t;
+            }
+            var result = param.getResult();
+            if (returnType != null && !returnType.isPrimitive() && !HookBridge.instanceOf(result, returnType)) {
+                throw new ClassCastException(castException);
+            }
+            return result;
+        }
+
+        private static Object callBefore(HookerCallback hooker, LSPosedHookCallback<?> callback,
+                                         HookProfiler.MethodStats stats) throws Throwable {
+            if (stats == null) {
+                return (Object) hooker.beforeHandle.invokeExact(callback);
+            }
+            var start = System.nanoTime();
+            try {
+                return (Object) hooker.beforeHandle.invokeExact(callback);
+            } finally {
+                stats.of(hooker).before.record(System.nanoTime() - start);
+            }
+        }
+
+        private static void callAfter(HookerCallback hooker, LSPosedHookCallback<?> callback, Object ctx,
+                                      HookProfiler.MethodStats stats) {
+            Object lastResult = callback.getResult();
+            Throwable lastThrowable = callback.getThrowable();
+            var start = stats == null ? 0 : System.nanoTime();
+            try {
+                hooker.afterHandle.invokeExact(callback, ctx);
+            } catch (Throwable t) {
+                LSPosedBridge.log(t);
+
+                // reset to last result (ignoring what the unexpectedly exiting callback did)
+                if (lastThrowable == null) {
+                    callback.setResult(lastResult);
+                } else {
+                    callback.setThrowable(lastThrowable);
+                }
+            }
+            if (stats != null) {
+                stats.of(hooker).after.record(System.nanoTime() - start);
+            }
+        }
+
+        private void invokeOriginal(T method, LSPosedHookCallback<T> callback, HookProfiler.MethodStats stats) throws Throwable {
+            var start = stats == null ? 0 : System.nanoTime();
+            try {
+                var result = HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
+                callback.setResult(result);
+            } catch (InvocationTargetException e) {
+                var throwable = (Throwable) HookBridge.invokeOriginalMethod(getCause, e);
+                callback.setThrowable(throwable);
+            }
+            if (stats != null) {
+                stats.original.record(System.nanoTime() - start);
+            }
+        }
+
+        private static Object returnResult(LSPosedHookCallback<?> callback, Class<?> returnType) throws Throwable {
             var t = callback.getThrowable();
             if (t != null) {
                 throw t;
@@ -279,7 +444,12 @@ public class LSPosedBridge {
             throw new HookFailedError(e);
         }
 
-        var callback = new LSPosedBridge.HookerCallback(beforeInvocation, afterInvocation);
+        LSPosedBridge.HookerCallback callback;
+        try {
+            callback = new LSPosedBridge.HookerCallback(beforeInvocation, afterInvocation);
+        } catch (IllegalAccessException e) {
+            throw new HookFailedError(e);
+        }
         if (HookBridge.hookMethod(true, hookMethod, LSPosedBridge.NativeHooker.class, priority, callback)) {
             return new XposedInterface.MethodUnhooker<>() {
                 @NonNull
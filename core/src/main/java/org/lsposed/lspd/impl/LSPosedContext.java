@@ -4,9 +4,7 @@ import android.annotation.SuppressLint;
 import android.app.ActivityThread;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
-import android.os.Build;
 import android.os.ParcelFileDescriptor;
-import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -19,9 +17,7 @@ import org.lsposed.lspd.models.Module;
 import org.lsposed.lspd.nativebridge.HookBridge;
 import org.lsposed.lspd.nativebridge.NativeAPI;
 import org.lsposed.lspd.service.ILSPInjectedModuleService;
-import org.lsposed.lspd.util.LspModuleClassLoader;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
@@ -66,11 +62,15 @@ public class LSPosedContext implements XposedInterface {
 
     public static void callOnPackageLoaded(XposedModuleInterface.PackageLoadedParam param) {
         for (XposedModule module : modules) {
+            var start = HookProfiler.enabled ? System.nanoTime() : 0;
             try {
                 module.onPackageLoaded(param);
             } catch (Throwable t) {
                 Log.e(TAG, "Error when calling onPackageLoaded of " + module.getApplicationInfo().packageName, t);
             }
+            if (start != 0) {
+                HookProfiler.recordStartup(module.getClass(), HookProfiler.PHASE_PACKAGE_LOADED, System.nanoTime() - start);
+            }
         }
     }
 
@@ -85,17 +85,11 @@ public class LSPosedContext implements XposedInterface {
     }
 
     @SuppressLint("DiscouragedPrivateApi")
-    public static boolean loadModule(ActivityThread at, Module module) {
+    public static boolean loadModule(ActivityThread at, Module module, ClassLoader mcl) {
         try {
             Log.d(TAG, "Loading module " + module.packageName);
-            var sb = new StringBuilder();
-            var abis = Process.is64Bit() ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
-            for (String abi : abis) {
-                sb.append(module.apkPath).append("!/lib/").append(abi).append(File.pathSeparator);
-            }
-            var librarySearchPath = sb.toString();
+            if (mcl == null) return false;
             var initLoader = XposedModule.class.getClassLoader();
-            var mcl = LspModuleClassLoader.loadApk(module.apkPath, module.file.preLoadedDexes, librarySearchPath, initLoader);
             if (mcl.loadClass(XposedModule.class.getName()).getClassLoader() != initLoader) {
                 Log.e(TAG, "  Cannot load module: " + module.packageName);
                 Log.e(TAG, "  The Xposed API classes are compiled into the module's APK.");
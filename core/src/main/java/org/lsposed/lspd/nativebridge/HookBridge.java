@@ -23,6 +23,4 @@ public class HookBridge {
 
     @FastNative
     public static native boolean setTrusted(Object cookie);
-
-    public static native Object[][] callbackSnapshot(Class<?> hooker_callback, Executable method);
 }
@@ -9,6 +9,8 @@ import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -36,6 +38,21 @@ final class ClassPathURLStreamHandler extends Handler {
         return null;
     }
 
+    // names of the uncompressed files directly inside the given directory of the jar
+    Set<String> getStoredFileNames(String directory) {
+        var prefix = directory + '/';
+        var result = new HashSet<String>();
+        var entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            var name = entry.getName();
+            if (entry.getMethod() == ZipEntry.STORED && name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0) {
+                result.add(name.substring(prefix.length()));
+            }
+        }
+        return result;
+    }
+
     @Override
     protected URLConnection openConnection(URL url) throws IOException {
         return new ClassPathURLConnection(url);
@@ -92,7 +109,7 @@ final class ClassPathURLStreamHandler extends Handler {
                 public void close() throws IOException {
                     super.close();
                     closed = true;
-                    jarFile.close();
+                    // jarFile is shared by all urls of this handler and closed with it
                     if (connectionJarFile != null) connectionJarFile.close();
                 }
             };
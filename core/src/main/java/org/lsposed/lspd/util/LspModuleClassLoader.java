@@ -21,9 +21,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hidden.ByteBufferDexClassLoader;
 import sun.misc.CompoundEnumeration;
@@ -35,6 +36,10 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
             splitPaths(System.getProperty("java.library.path"));
     private final String apk;
     private final List<File> nativeLibraryDirs = new ArrayList<>();
+    // zip path -> handler, the zip stays open for all resource and library lookups
+    private final Map<String, ClassPathURLStreamHandler> zipHandlers = new ConcurrentHashMap<>();
+    // library directory inside a zip -> file names of the uncompressed libraries in it
+    private final Map<String, Set<String>> zipLibraries = new ConcurrentHashMap<>();
 
     private static List<File> splitPaths(String searchPath) {
         var result = new ArrayList<File>();
@@ -62,6 +67,15 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
         this.apk = apk;
     }
 
+    private LspModuleClassLoader(String dexPath,
+                                 String librarySearchPath,
+                                 ClassLoader parent,
+                                 String apk) {
+        super(dexPath, librarySearchPath, parent);
+        initNativeLibraryDirs(librarySearchPath);
+        this.apk = apk;
+    }
+
     private void initNativeLibraryDirs(String librarySearchPath) {
         nativeLibraryDirs.addAll(splitPaths(librarySearchPath));
         nativeLibraryDirs.addAll(systemNativeLibraryDirs);
@@ -90,21 +104,40 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
         }
     }
 
+    private ClassPathURLStreamHandler getZipHandler(String zipPath) throws IOException {
+        var handler = zipHandlers.get(zipPath);
+        if (handler != null) return handler;
+        synchronized (zipHandlers) {
+            handler = zipHandlers.get(zipPath);
+            if (handler == null) {
+                handler = new ClassPathURLStreamHandler(zipPath);
+                zipHandlers.put(zipPath, handler);
+            }
+            return handler;
+        }
+    }
+
+    private Set<String> getZipLibraries(String path) throws IOException {
+        var libraries = zipLibraries.get(path);
+        if (libraries != null) return libraries;
+        var split = path.split(zipSeparator, 2);
+        libraries = getZipHandler(split[0]).getStoredFileNames(split[1]);
+        zipLibraries.put(path, libraries);
+        return libraries;
+    }
+
     @Override
     public String findLibrary(String libraryName) {
         var fileName = System.mapLibraryName(libraryName);
         for (var file : nativeLibraryDirs) {
             var path = file.getPath();
             if (path.contains(zipSeparator)) {
-                var split = path.split(zipSeparator, 2);
-                try (var jarFile = new JarFile(split[0])) {
-                    var entryName = split[1] + '/' + fileName;
-                    var entry = jarFile.getEntry(entryName);
-                    if (entry != null && entry.getMethod() == ZipEntry.STORED) {
-                        return split[0] + zipSeparator + entryName;
+                try {
+                    if (getZipLibraries(path).contains(fileName)) {
+                        return path + '/' + fileName;
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "Can not open " + split[0], e);
+                    Log.e(TAG, "Can not open " + path, e);
                 }
             } else if (file.isDirectory()) {
                 var entryPath = new File(file, fileName).getPath();
@@ -134,13 +167,7 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
     @Override
     protected URL findResource(String name) {
         try {
-            var urlHandler = new ClassPathURLStreamHandler(apk);
-            var url = urlHandler.getEntryUrlOrNull(name);
-            if (url == null) {
-                // noinspection FinalizeCalledExplicitly
-                urlHandler.finalize();
-            }
-            return url;
+            return getZipHandler(apk).getEntryUrlOrNull(name);
         } catch (IOException e) {
             return null;
         }
@@ -182,8 +209,15 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
 
     public static ClassLoader loadApk(String apk,
                                       List<SharedMemory> dexes,
+                                      String compiledDexPath,
                                       String librarySearchPath,
                                       ClassLoader parent) {
+        // the compiled copy lets ART use its oat file instead of interpreting the in-memory dexes
+        if (compiledDexPath != null && new File(compiledDexPath).canRead()) {
+            var cl = new LspModuleClassLoader(compiledDexPath, librarySearchPath, parent, apk);
+            dexes.stream().parallel().forEach(SharedMemory::close);
+            return cl;
+        }
         var dexBuffers = dexes.stream().parallel().map(dex -> {
             try {
                 return dex.mapReadOnly();
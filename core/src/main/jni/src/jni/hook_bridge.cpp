@@ -31,12 +31,15 @@ using namespace lsplant;
 namespace {
 struct ModuleCallback {
     jmethodID before_method;
-    jmethodID after_method;
+    jobject callback;
 };
 
 struct HookItem {
     std::multimap<jint, jobject, std::greater<>> legacy_callbacks;
     std::multimap<jint, ModuleCallback, std::greater<>> modern_callbacks;
+    // the NativeHooker instance whose callbacks snapshot is republished whenever the
+    // callback maps change, so that the hooked method can read it without locking
+    jobject hooker {nullptr};
 private:
     std::atomic<jobject> backup {nullptr};
     static_assert(decltype(backup)::is_always_lock_free);
@@ -66,9 +69,29 @@ using SharedHashMap = phmap::parallel_flat_hash_map<K, V, Hash, Eq, Alloc, N, st
 SharedHashMap<jmethodID, std::unique_ptr<HookItem>> hooked_methods;
 
 jmethodID invoke = nullptr;
-jmethodID callback_ctor = nullptr;
+jclass object_class = nullptr;
+jclass object_array_class = nullptr;
 jfieldID before_method_field = nullptr;
-jfieldID after_method_field = nullptr;
+jfieldID snapshot_field = nullptr;
+
+// Must be called with the monitor of the backup held
+void PublishSnapshot(JNIEnv *env, HookItem *hook_item) {
+    auto modern = env->NewObjectArray((jsize) hook_item->modern_callbacks.size(), object_class, nullptr);
+    auto legacy = env->NewObjectArray((jsize) hook_item->legacy_callbacks.size(), object_class, nullptr);
+    for (jsize i = 0; const auto &callback: hook_item->modern_callbacks) {
+        env->SetObjectArrayElement(modern, i++, callback.second.callback);
+    }
+    for (jsize i = 0; const auto &callback: hook_item->legacy_callbacks) {
+        env->SetObjectArrayElement(legacy, i++, callback.second);
+    }
+    auto snapshot = env->NewObjectArray(2, object_array_class, nullptr);
+    env->SetObjectArrayElement(snapshot, 0, modern);
+    env->SetObjectArrayElement(snapshot, 1, legacy);
+    env->SetObjectField(hook_item->hooker, snapshot_field, snapshot);
+    env->DeleteLocalRef(modern);
+    env->DeleteLocalRef(legacy);
+    env->DeleteLocalRef(snapshot);
+}
 }
 
 namespace lspd {
@@ -106,6 +129,10 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, hookMethod, jboolean useModernApi, j
                                                                                "([Ljava/lang/Object;)Ljava/lang/Object;"),
                                                       false);
         auto hooker_object = env->NewObject(hooker, init, hookMethod);
+        if (snapshot_field == nullptr) {
+            snapshot_field = JNI_GetFieldID(env, hooker, "snapshot", "[[Ljava/lang/Object;");
+        }
+        hook_item->hooker = env->NewGlobalRef(hooker_object);
         hook_item->SetBackup(lsplant::Hook(env, hookMethod, hooker_object, callback_method));
         env->DeleteLocalRef(hooker_object);
     }
@@ -115,20 +142,18 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, hookMethod, jboolean useModernApi, j
     if (useModernApi) {
         if (before_method_field == nullptr) {
             auto callback_class = JNI_GetObjectClass(env, callback);
-            callback_ctor = JNI_GetMethodID(env, callback_class, "<init>", "(Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;)V");
             before_method_field = JNI_GetFieldID(env, callback_class, "beforeInvocation", "Ljava/lang/reflect/Method;");
-            after_method_field = JNI_GetFieldID(env, callback_class, "afterInvocation", "Ljava/lang/reflect/Method;");
         }
         auto before_method = JNI_GetObjectField(env, callback, before_method_field);
-        auto after_method = JNI_GetObjectField(env, callback, after_method_field);
         auto callback_type = ModuleCallback {
                 .before_method = env->FromReflectedMethod(before_method),
-                .after_method = env->FromReflectedMethod(after_method),
+                .callback = env->NewGlobalRef(callback),
         };
         hook_item->modern_callbacks.emplace(priority, callback_type);
     } else {
         hook_item->legacy_callbacks.emplace(priority, env->NewGlobalRef(callback));
     }
+    PublishSnapshot(env, hook_item);
     return JNI_TRUE;
 }
 
@@ -147,14 +172,18 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, unhookMethod, jboolean useModernApi,
         auto before = env->FromReflectedMethod(before_method);
         for (auto i = hook_item->modern_callbacks.begin(); i != hook_item->modern_callbacks.end(); ++i) {
             if (before == i->second.before_method) {
+                env->DeleteGlobalRef(i->second.callback);
                 hook_item->modern_callbacks.erase(i);
+                PublishSnapshot(env, hook_item);
                 return JNI_TRUE;
             }
         }
     } else {
         for (auto i = hook_item->legacy_callbacks.begin(); i != hook_item->legacy_callbacks.end(); ++i) {
             if (env->IsSameObject(i->second, callback)) {
+                env->DeleteGlobalRef(i->second);
                 hook_item->legacy_callbacks.erase(i);
+                PublishSnapshot(env, hook_item);
                 return JNI_TRUE;
             }
         }
@@ -294,34 +323,6 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, setTrusted, jobject cookie) {
     return lsplant::MakeDexFileTrusted(env, cookie);
 }
 
-LSP_DEF_NATIVE_METHOD(jobjectArray, HookBridge, callbackSnapshot, jclass callback_class, jobject method) {
-    auto target = env->FromReflectedMethod(method);
-    HookItem *hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
-    if (!hook_item) return nullptr;
-    jobject backup = hook_item->GetBackup();
-    if (!backup) return nullptr;
-    JNIMonitor monitor(env, backup);
-
-    auto res = env->NewObjectArray(2, env->FindClass("[Ljava/lang/Object;"), nullptr);
-    auto modern = env->NewObjectArray((jsize) hook_item->modern_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    auto legacy = env->NewObjectArray((jsize) hook_item->legacy_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    for (jsize i = 0; auto callback: hook_item->modern_callbacks) {
-        auto before_method = JNI_ToReflectedMethod(env, clazz, callback.second.before_method, JNI_TRUE);
-        auto after_method = JNI_ToReflectedMethod(env, clazz, callback.second.after_method, JNI_TRUE);
-        auto callback_object = JNI_NewObject(env, callback_class, callback_ctor, before_method, after_method);
-        env->SetObjectArrayElement(modern, i++, env->NewLocalRef(callback_object));
-    }
-    for (jsize i = 0; auto callback: hook_item->legacy_callbacks) {
-        env->SetObjectArrayElement(legacy, i++, env->NewLocalRef(callback.second));
-    }
-    env->SetObjectArrayElement(res, 0, modern);
-    env->SetObjectArrayElement(res, 1, legacy);
-    return res;
-}
-
 static JNINativeMethod gMethods[] = {
     LSP_NATIVE_METHOD(HookBridge, hookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Class;ILjava/lang/Object;)Z"),
     LSP_NATIVE_METHOD(HookBridge, unhookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Object;)Z"),
@@ -331,7 +332,6 @@ static JNINativeMethod gMethods[] = {
     LSP_NATIVE_METHOD(HookBridge, allocateObject, "(Ljava/lang/Class;)Ljava/lang/Object;"),
     LSP_NATIVE_METHOD(HookBridge, instanceOf, "(Ljava/lang/Object;Ljava/lang/Class;)Z"),
     LSP_NATIVE_METHOD(HookBridge, setTrusted, "(Ljava/lang/Object;)Z"),
-    LSP_NATIVE_METHOD(HookBridge, callbackSnapshot, "(Ljava/lang/Class;Ljava/lang/reflect/Executable;)[[Ljava/lang/Object;"),
 };
 
 void RegisterHookBridge(JNIEnv *env) {
@@ -340,6 +340,12 @@ void RegisterHookBridge(JNIEnv *env) {
             method, "invoke",
             "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
     env->DeleteLocalRef(method);
+    auto object = env->FindClass("java/lang/Object");
+    object_class = (jclass) env->NewGlobalRef(object);
+    env->DeleteLocalRef(object);
+    auto object_array = env->FindClass("[Ljava/lang/Object;");
+    object_array_class = (jclass) env->NewGlobalRef(object_array);
+    env->DeleteLocalRef(object_array);
     REGISTER_LSP_NATIVE_METHODS(HookBridge);
 }
 } // namespace lspd
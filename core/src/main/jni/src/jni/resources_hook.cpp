@@ -99,7 +99,7 @@ namespace lspd {
         }
         methodXResourcesTranslateAttrId = JNI_GetStaticMethodID(
                 env, classXResources, "translateAttrId",
-                fmt::format("(Ljava/lang/String;L{};)I", x_resources_class_name));
+                fmt::format("(IL{};Landroid/content/res/Resources;)I", x_resources_class_name));
         if (!methodXResourcesTranslateAttrId) {
             return JNI_FALSE;
         }
@@ -169,13 +169,11 @@ namespace lspd {
                         // only replace attribute name IDs for app packages
                         if (attrNameID >= 0 && (size_t) attrNameID < mTree.mNumResIds &&
                             mResIds[attrNameID] >= 0x7f000000) {
-                            auto attrName = mTree.mStrings.stringAt(attrNameID);
+                            // translated by ID, the name is looked up by XResources only once
                             jint attrResID = env->CallStaticIntMethod(classXResources,
                                                                       methodXResourcesTranslateAttrId,
-                                                                      env->NewString(
-                                                                              (const jchar *) attrName.data_,
-                                                                              attrName.length_),
-                                                                      origRes);
+                                                                      (jint) mResIds[attrNameID],
+                                                                      origRes, repRes);
                             if (env->ExceptionCheck())
                                 goto leave;
 
@@ -25,6 +25,7 @@ import static org.lsposed.lspd.service.ServiceManager.toGlobalNamespace;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.os.Binder;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
@@ -40,9 +41,16 @@ import androidx.annotation.Nullable;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.models.PreLoadedApk;
 import org.lsposed.lspd.util.InstallerVerifier;
+import org.lsposed.lspd.util.LogDecoder;
 import org.lsposed.lspd.util.Utils;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -61,15 +69,20 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -88,6 +101,10 @@ public class ConfigFileManager {
     static final File dbPath = configDirPath.resolve("modules_config.db").toFile();
     private static final Path logDirPath = basePath.resolve("log");
     private static final Path oldLogDirPath = basePath.resolve("log.old");
+    private static final Path moduleCachePath = basePath.resolve("cache");
+    static final Path processIndexPath = basePath.resolve("process_index");
+    private static final int MODULE_CACHE_MAGIC = 0x4c535043; // LSPC
+    private static final int MODULE_CACHE_VERSION = 2;
     private static final DateTimeFormatter formatter =
             DateTimeFormatter.ISO_LOCAL_DATE_TIME.withZone(Utils.getZoneId());
     @SuppressWarnings("FieldCanBeLocal")
@@ -276,6 +293,15 @@ public class ConfigFileManager {
             }
             zipAddFile(os, dbPath.toPath(), configDirPath);
             ConfigManager.getInstance().exportScopes(os);
+            os.putNextEntry(new ZipEntry("remote_preferences.txt"));
+            os.write(RemotePreferenceDispatcher.dump().getBytes(StandardCharsets.UTF_8));
+            os.closeEntry();
+            var dex2oat = ServiceManager.getDex2OatService();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && dex2oat != null) {
+                os.putNextEntry(new ZipEntry("dex2oat.txt"));
+                os.write(dex2oat.dump().getBytes(StandardCharsets.UTF_8));
+                os.closeEntry();
+            }
         } catch (Throwable e) {
             Log.w(TAG, "get log", e);
             throw new IllegalStateException(e);
@@ -318,9 +344,14 @@ public class ConfigFileManager {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
                 if (Files.isRegularFile(file)) {
                     var name = path.getParent().relativize(file).toString();
-                    try (var is = new FileInputStream(file.toFile())) {
+                    try (var channel = FileChannel.open(file)) {
                         os.putNextEntry(new ZipEntry(name));
-                        transfer(is, os);
+                        // logs are written binary, export them as text
+                        if (LogDecoder.isBinary(channel)) {
+                            new LogDecoder(channel, Utils.getZoneId()).decode(os);
+                        } else {
+                            transfer(Channels.newInputStream(channel), os);
+                        }
                         os.closeEntry();
                     } catch (IOException e) {
                         Log.w(TAG, name, e);
@@ -331,11 +362,40 @@ public class ConfigFileManager {
         });
     }
 
-    private static SharedMemory readDex(InputStream in, boolean obfuscate) throws IOException, ErrnoException {
-        var memory = SharedMemory.create(null, in.available());
+    private static SharedMemory readDex(InputStream in, long size, boolean obfuscate) throws IOException, ErrnoException {
+        return finishDex(readRawDex(in, size), obfuscate);
+    }
+
+    // the dex as it is in the apk, still writable so that it can be obfuscated
+    private static SharedMemory readRawDex(InputStream in, long size) throws IOException, ErrnoException {
+        if (size < 0) {
+            // size unknown, buffer the whole stream
+            var os = new ByteArrayOutputStream();
+            transfer(in, os);
+            var bytes = os.toByteArray();
+            return readRawDex(new ByteArrayInputStream(bytes), bytes.length);
+        }
+        if (size == 0 || size > Integer.MAX_VALUE) throw new IOException("Invalid dex size " + size);
+        var memory = SharedMemory.create(null, (int) size);
         var byteBuffer = memory.mapReadWrite();
-        Channels.newChannel(in).read(byteBuffer);
-        SharedMemory.unmap(byteBuffer);
+        try {
+            // a single read may return as soon as the inflater has produced anything
+            var channel = Channels.newChannel(in);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer) < 0) {
+                    throw new EOFException("Dex truncated at " + byteBuffer.position() + "/" + size);
+                }
+            }
+        } catch (IOException e) {
+            memory.close();
+            throw e;
+        } finally {
+            SharedMemory.unmap(byteBuffer);
+        }
+        return memory;
+    }
+
+    private static SharedMemory finishDex(SharedMemory memory, boolean obfuscate) throws ErrnoException {
         if (obfuscate) {
             var newMemory = ObfuscationManager.obfuscateDex(memory);
             if (memory != newMemory) {
@@ -347,17 +407,20 @@ public class ConfigFileManager {
         return memory;
     }
 
-    private static void readDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes,
-                                  boolean obfuscate) {
+    // returns false if any of the dexes could not be read
+    private static boolean readRawDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes) {
+        boolean complete = true;
         int secondary = 2;
         for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
              dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
             try (var is = apkFile.getInputStream(dexFile)) {
-                preLoadedDexes.add(readDex(is, obfuscate));
+                preLoadedDexes.add(readRawDex(is, dexFile.getSize()));
             } catch (IOException | ErrnoException e) {
                 Log.w(TAG, "Can not load " + dexFile + " in " + apkFile, e);
+                complete = false;
             }
         }
+        return complete;
     }
 
     private static void readName(ZipFile apkFile, String initName, List<String> names) {
@@ -376,15 +439,57 @@ public class ConfigFileManager {
         }
     }
 
+    /*
+     * The cache holds the dexes and names as they are in the apk. The obfuscation signatures are
+     * generated anew on every daemon start, so they are applied after the cache is read.
+     */
     @Nullable
     static PreLoadedApk loadModule(String path, boolean obfuscate) {
         if (path == null) return null;
+        var cacheFile = moduleCachePath.resolve(moduleCacheName(path));
+        var cacheKey = moduleCacheKey(path);
+        PreLoadedApk file = null;
+        if (cacheKey != null) file = readModuleCache(cacheFile, cacheKey);
+        if (file == null) {
+            file = readModule(path, cacheFile, cacheKey);
+            if (file == null) return null;
+        }
+
+        try {
+            for (int i = 0; i < file.preLoadedDexes.size(); i++) {
+                file.preLoadedDexes.set(i, finishDex(file.preLoadedDexes.get(i), obfuscate));
+            }
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Can not process dexes of " + path, e);
+            file.preLoadedDexes.forEach(SharedMemory::close);
+            return null;
+        }
+
+        if (obfuscate) {
+            var signatures = ObfuscationManager.getSignatures();
+            var moduleClassNames = file.moduleClassNames;
+            for (int i = 0; i < moduleClassNames.size(); i++) {
+                var s = moduleClassNames.get(i);
+                for (var entry : signatures.entrySet()) {
+                    if (s.startsWith(entry.getKey())) {
+                        moduleClassNames.add(i, s.replace(entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+        }
+        return file;
+    }
+
+    // reads the module from its apk, caching it unless some of its dexes could not be read
+    @Nullable
+    private static PreLoadedApk readModule(String path, Path cacheFile, @Nullable String cacheKey) {
         var file = new PreLoadedApk();
         var preLoadedDexes = new ArrayList<SharedMemory>();
         var moduleClassNames = new ArrayList<String>(1);
         var moduleLibraryNames = new ArrayList<String>(1);
+        boolean complete;
         try (var apkFile = new ZipFile(toGlobalNamespace(path))) {
-            readDexes(apkFile, preLoadedDexes, obfuscate);
+            complete = readRawDexes(apkFile, preLoadedDexes);
             readName(apkFile, "META-INF/xposed/java_init.list", moduleClassNames);
             if (moduleClassNames.isEmpty()) {
                 file.legacy = true;
@@ -396,29 +501,156 @@ public class ConfigFileManager {
             }
         } catch (IOException e) {
             Log.e(TAG, "Can not open " + path, e);
+            preLoadedDexes.forEach(SharedMemory::close);
             return null;
         }
-        if (preLoadedDexes.isEmpty()) return null;
-        if (moduleClassNames.isEmpty()) return null;
-
-        if (obfuscate) {
-            var signatures = ObfuscationManager.getSignatures();
-            for (int i = 0; i < moduleClassNames.size(); i++) {
-                var s = moduleClassNames.get(i);
-                for (var entry : signatures.entrySet()) {
-                    if (s.startsWith(entry.getKey())) {
-                        moduleClassNames.add(i, s.replace(entry.getKey(), entry.getValue()));
-                    }
-                }
-            }
+        if (preLoadedDexes.isEmpty() || moduleClassNames.isEmpty()) {
+            preLoadedDexes.forEach(SharedMemory::close);
+            return null;
         }
 
         file.preLoadedDexes = preLoadedDexes;
         file.moduleClassNames = moduleClassNames;
         file.moduleLibraryNames = moduleLibraryNames;
+        if (cacheKey != null && complete) writeModuleCache(cacheFile, cacheKey, file);
         return file;
     }
 
+    private static String moduleCacheName(String path) {
+        return UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    // apk path + size + mtime, null if the apk can not be stat
+    @Nullable
+    private static String moduleCacheKey(String path) {
+        try {
+            var attrs = Files.readAttributes(toGlobalNamespace(path).toPath(), BasicFileAttributes.class);
+            return path + ":" + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            Log.w(TAG, "stat " + path, e);
+            return null;
+        }
+    }
+
+    /*
+     * Layout of a module cache file:
+     *   magic, version, key, legacy, java init names, native init names,
+     *   dex sizes, followed by the processed dexes back to back
+     */
+    @Nullable
+    private static PreLoadedApk readModuleCache(Path cacheFile, String key) {
+        if (!Files.isRegularFile(cacheFile)) return null;
+        var preLoadedDexes = new ArrayList<SharedMemory>();
+        try (var channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            // DataInputStream does not read ahead, so the channel stays right behind the header
+            var in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != MODULE_CACHE_MAGIC || in.readInt() != MODULE_CACHE_VERSION || !key.equals(in.readUTF())) {
+                Files.deleteIfExists(cacheFile);
+                return null;
+            }
+            var file = new PreLoadedApk();
+            file.legacy = in.readBoolean();
+            file.moduleClassNames = readNames(in);
+            file.moduleLibraryNames = readNames(in);
+            var sizes = new int[in.readInt()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = in.readInt();
+            }
+            var offset = channel.position();
+            for (var size : sizes) {
+                var memory = SharedMemory.create(null, size);
+                preLoadedDexes.add(memory);
+                var byteBuffer = memory.mapReadWrite();
+                byteBuffer.put(channel.map(FileChannel.MapMode.READ_ONLY, offset, size));
+                SharedMemory.unmap(byteBuffer);
+                offset += size;
+            }
+            file.preLoadedDexes = preLoadedDexes;
+            Log.d(TAG, "Loaded " + key + " from cache");
+            return file;
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            Log.w(TAG, "Can not read module cache " + cacheFile, e);
+            preLoadedDexes.forEach(SharedMemory::close);
+            try {
+                Files.deleteIfExists(cacheFile);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        var names = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeModuleCache(Path cacheFile, String key, PreLoadedApk file) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(moduleCachePath);
+            tmp = Files.createTempFile(moduleCachePath, cacheFile.getFileName().toString(), ".tmp");
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(MODULE_CACHE_MAGIC);
+                out.writeInt(MODULE_CACHE_VERSION);
+                out.writeUTF(key);
+                out.writeBoolean(file.legacy);
+                writeNames(out, file.moduleClassNames);
+                writeNames(out, file.moduleLibraryNames);
+                out.writeInt(file.preLoadedDexes.size());
+                for (var dex : file.preLoadedDexes) {
+                    out.writeInt(dex.getSize());
+                }
+                out.flush();
+                for (var dex : file.preLoadedDexes) {
+                    var byteBuffer = dex.mapReadOnly();
+                    try {
+                        while (byteBuffer.hasRemaining()) channel.write(byteBuffer);
+                    } finally {
+                        SharedMemory.unmap(byteBuffer);
+                    }
+                }
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Can not write module cache " + cacheFile, e);
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (var name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    // drop cache files of modules that are no longer cached
+    static void pruneModuleCache(Collection<String> apkPaths) {
+        if (!Files.isDirectory(moduleCachePath)) return;
+        var keep = apkPaths.stream().map(ConfigFileManager::moduleCacheName).collect(Collectors.toSet());
+        try (var files = Files.list(moduleCachePath)) {
+            files.filter(p -> !keep.contains(p.getFileName().toString())).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    Log.w(TAG, "delete " + p, e);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "prune module cache", e);
+        }
+    }
+
     static boolean tryLock() {
         var openOptions = new HashSet<OpenOption>();
         openOptions.add(StandardOpenOption.CREATE);
@@ -438,7 +670,7 @@ public class ConfigFileManager {
     synchronized static SharedMemory getPreloadDex(boolean obfuscate) {
         if (preloadDex == null) {
             try (var is = new FileInputStream("framework/lspd.dex")) {
-                preloadDex = readDex(is, obfuscate);
+                preloadDex = readDex(is, is.getChannel().size(), obfuscate);
             } catch (Throwable e) {
                 Log.e(TAG, "preload dex", e);
             }
@@ -29,12 +29,12 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.pm.PackageParser;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
@@ -47,6 +47,7 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -55,6 +56,7 @@ import org.apache.commons.lang3.SerializationUtils;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.models.Application;
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.models.PreLoadedApk;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -70,9 +72,12 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -97,7 +102,10 @@ public class ConfigManager {
     private boolean verboseLog = true;
     private boolean dexObfuscate = true;
     private boolean enableStatusNotification = true;
+    private boolean hookProfiler = false;
+    private boolean moduleAot = false;
     private Path miscPath = null;
+    private ModuleCompiler moduleCompiler = null;
 
     private int managerUid = -1;
 
@@ -109,6 +117,11 @@ public class ConfigManager {
     private long lastScopeCacheTime = 0;
     private long requestScopeCacheTime = 0;
 
+    private long fullModuleCaches = 0;
+    private long incrementalModuleCaches = 0;
+    private long fullScopeCaches = 0;
+    private long incrementalScopeCaches = 0;
+
     private String api = "(???)";
 
     static class ProcessScope {
@@ -135,6 +148,40 @@ public class ConfigManager {
         }
     }
 
+    // Immutable snapshot of the scope, rebuilt aside and published as a whole so that
+    // process start never observes a partially built scope
+    private static final class ScopeIndex {
+        static final ScopeIndex EMPTY = new ScopeIndex(Collections.emptyMap(), Collections.emptyMap());
+
+        // packageName/userId of a scoped app, the module names it contributes to each process
+        final Map<Pair<String, Integer>, Map<ProcessScope, List<String>>> apps;
+        final Map<ProcessScope, List<Module>> scopes;
+        // uid, processes of that uid in scope; read only once published
+        final SparseArray<List<ProcessScope>> uids = new SparseArray<>();
+
+        ScopeIndex(Map<Pair<String, Integer>, Map<ProcessScope, List<String>>> apps, Map<String, Module> modules) {
+            var scopes = new HashMap<ProcessScope, List<Module>>();
+            apps.forEach((app, scope) -> scope.forEach((processScope, moduleNames) -> {
+                for (var moduleName : moduleNames) {
+                    var module = modules.get(moduleName);
+                    if (module == null) continue;
+                    scopes.computeIfAbsent(processScope, ignored -> {
+                        var processes = uids.get(processScope.uid);
+                        if (processes == null) {
+                            processes = new ArrayList<>();
+                            uids.put(processScope.uid, processes);
+                        }
+                        processes.add(processScope);
+                        return new ArrayList<>();
+                    }).add(module);
+                }
+            }));
+            scopes.replaceAll((scope, list) -> Collections.unmodifiableList(list));
+            this.apps = Collections.unmodifiableMap(new LinkedHashMap<>(apps));
+            this.scopes = Collections.unmodifiableMap(scopes);
+        }
+    }
+
     private final SQLiteStatement createModulesTable = db.compileStatement("CREATE TABLE IF NOT EXISTS modules (" +
             "mid integer PRIMARY KEY AUTOINCREMENT," +
             "module_pkg_name text NOT NULL UNIQUE," +
@@ -165,13 +212,60 @@ public class ConfigManager {
             "  ON DELETE CASCADE" +
             ");");
 
-    private final Map<ProcessScope, List<Module>> cachedScope = new ConcurrentHashMap<>();
+    // compiled once the tables exist; bindings are not thread safe, so the config statements
+    // are guarded by insertConfig and the scope one by itself
+    private final SQLiteStatement insertConfig;
+    private final SQLiteStatement deleteConfig;
+    private final SQLiteStatement insertScope;
+
+    private volatile ScopeIndex cachedScope = ScopeIndex.EMPTY;
 
     // packageName, Module
     private final Map<String, Module> cachedModule = new ConcurrentHashMap<>();
+    // appId, Module; rebuilt from cachedModule and never modified once published
+    private volatile SparseArray<Module> cachedModuleByAppId = new SparseArray<>();
 
     // packageName, userId, group, key, value
     private final Map<Pair<String, Integer>, Map<String, HashMap<String, Object>>> cachedConfig = new ConcurrentHashMap<>();
+    // packageName, userId, serialized size of the prefs
+    private final Map<Pair<String, Integer>, PrefsSize> cachedConfigSize = new ConcurrentHashMap<>();
+
+    private static final long PREFS_SIZE_LIMIT = 1024 * 1024;
+
+    // Serialized size of each pref, so that the limit check only looks at the changed keys
+    private static final class PrefsSize {
+        // group, key, size
+        private final Map<String, HashMap<String, Integer>> groups = new HashMap<>();
+        private long total = 0;
+
+        static int of(String key, byte[] data) {
+            return key.length() * 2 + data.length;
+        }
+
+        int get(String group, String key) {
+            var keys = groups.get(group);
+            if (keys == null) return 0;
+            return keys.getOrDefault(key, 0);
+        }
+
+        void put(String group, String key, int size) {
+            var old = groups.computeIfAbsent(group, g -> new HashMap<>()).put(key, size);
+            total += size - (old == null ? 0 : old);
+        }
+
+        void remove(String group, String key) {
+            var keys = groups.get(group);
+            if (keys == null) return;
+            var old = keys.remove(key);
+            if (old != null) total -= old;
+        }
+
+        void removeGroup(String group) {
+            var keys = groups.remove(group);
+            if (keys == null) return;
+            for (var size : keys.values()) total -= size;
+        }
+    }
 
     private Set<String> scopeRequestBlocked = new HashSet<>();
 
@@ -238,6 +332,9 @@ public class ConfigManager {
                     module.applicationInfo.deviceProtectedDataDir = statPath;
                     HiddenApiBridge.ApplicationInfo_credentialProtectedDataDir(module.applicationInfo, statPath);
                     module.applicationInfo.processName = module.packageName;
+                    // parsePackage does not copy the meta data to the application info
+                    module.applicationInfo.metaData = pkg.mAppMetaData;
+                    readModuleMetaData(module);
                 } catch (PackageParser.PackageParserException e) {
                     Log.w(TAG, "failed to parse " + module.apkPath, e);
                 }
@@ -246,16 +343,19 @@ public class ConfigManager {
             }
         }
 
-        return modules.parallelStream().filter(m -> {
+        var loaded = modules.parallelStream().filter(m -> {
             var file = ConfigFileManager.loadModule(m.apkPath, dexObfuscate);
             if (file == null) {
                 Log.w(TAG, "Can not load " + m.apkPath + ", skip!");
                 return false;
             }
             m.file = file;
+            compileModule(file);
             cachedModule.putIfAbsent(m.packageName, m);
             return true;
         }).collect(Collectors.toList());
+        indexModules();
+        return loaded;
     }
 
     private synchronized void updateConfig() {
@@ -276,6 +376,12 @@ public class ConfigManager {
         bool = config.get("enable_status_notification");
         enableStatusNotification = bool == null || (boolean) bool;
 
+        bool = config.get("enable_hook_profiler");
+        hookProfiler = bool != null && (boolean) bool;
+
+        bool = config.get("enable_module_aot");
+        moduleAot = bool != null && (boolean) bool;
+
         var set = (Set<String>) config.get("scope_request_blocked");
         scopeRequestBlocked = set == null ? new HashSet<>() : set;
 
@@ -294,6 +400,10 @@ public class ConfigManager {
         } catch (IOException e) {
             Log.e(TAG, Log.getStackTraceString(e));
         }
+        // compiled modules have to be readable by hooked processes, unlike the rest of basePath
+        if (moduleCompiler == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            moduleCompiler = new ModuleCompiler(miscPath.resolve("oat"));
+        }
 
         updateManager(false);
 
@@ -342,6 +452,9 @@ public class ConfigManager {
         cacheHandler = new Handler(cacheThread.getLooper());
 
         initDB();
+        insertConfig = db.compileStatement("INSERT OR REPLACE INTO configs (module_pkg_name, user_id, `group`, `key`, data) VALUES (?, ?, ?, ?, ?);");
+        deleteConfig = db.compileStatement("DELETE FROM configs WHERE module_pkg_name = ? AND user_id = ? AND `group` = ? AND `key` = ?;");
+        insertScope = db.compileStatement("INSERT OR IGNORE INTO scope (mid, app_pkg_name, user_id) VALUES (?, ?, ?);");
         updateConfig();
         // must ensure cache is valid for later usage
         updateCaches(true);
@@ -444,6 +557,8 @@ public class ConfigManager {
     private @NonNull
     Map<String, HashMap<String, Object>> fetchModuleConfig(String name, int user_id) {
         var config = new ConcurrentHashMap<String, HashMap<String, Object>>();
+        var size = new PrefsSize();
+        cachedConfigSize.put(new Pair<>(name, user_id), size);
 
         try (Cursor cursor = db.query("configs", new String[]{"`group`", "`key`", "data"},
                 "module_pkg_name = ? and user_id = ?", new String[]{name, String.valueOf(user_id)}, null, null, null)) {
@@ -461,6 +576,7 @@ public class ConfigManager {
                 var object = SerializationUtils.deserialize(data);
                 if (object == null) continue;
                 config.computeIfAbsent(group, g -> new HashMap<>()).put(key, object);
+                size.put(group, key, PrefsSize.of(key, data));
             }
         }
         return config;
@@ -474,32 +590,62 @@ public class ConfigManager {
 
     public void updateModulePrefs(String moduleName, int userId, String group, Map<String, Object> values) {
         var config = cachedConfig.computeIfAbsent(new Pair<>(moduleName, userId), module -> fetchModuleConfig(module.first, module.second));
+        var size = cachedConfigSize.computeIfAbsent(new Pair<>(moduleName, userId), module -> new PrefsSize());
         config.compute(group, (g, prefs) -> {
             HashMap<String, Object> newPrefs = prefs == null ? new HashMap<>() : new HashMap<>(prefs);
-            executeInTransaction(() -> {
+            synchronized (size) {
+                // key, serialized value; null for removal
+                var changes = new HashMap<String, byte[]>();
+                long newTotal = size.total;
                 for (var entry : values.entrySet()) {
                     var key = entry.getKey();
                     var value = entry.getValue();
+                    newTotal -= size.get(group, key);
                     if (value instanceof Serializable) {
-                        newPrefs.put(key, value);
-                        var contents = new ContentValues();
-                        contents.put("`group`", group);
-                        contents.put("`key`", key);
-                        contents.put("data", SerializationUtils.serialize((Serializable) value));
-                        contents.put("module_pkg_name", moduleName);
-                        contents.put("user_id", String.valueOf(userId));
-                        db.insertWithOnConflict("configs", null, contents, SQLiteDatabase.CONFLICT_REPLACE);
+                        var data = SerializationUtils.serialize((Serializable) value);
+                        changes.put(key, data);
+                        newTotal += PrefsSize.of(key, data);
                     } else {
-                        newPrefs.remove(key);
-                        db.delete("configs", "module_pkg_name=? and user_id=? and `group`=? and `key`=?", new String[]{moduleName, String.valueOf(userId), group, key});
+                        changes.put(key, null);
                     }
                 }
-                var bundle = new Bundle();
-                bundle.putSerializable("config", (Serializable) config);
-                if (bundle.size() > 1024 * 1024) {
+                // modules already over the limit can still shrink their prefs
+                if (newTotal > PREFS_SIZE_LIMIT && newTotal > size.total) {
                     throw new IllegalArgumentException("Preference too large");
                 }
-            });
+                executeInTransaction(() -> {
+                    synchronized (insertConfig) {
+                        for (var entry : changes.entrySet()) {
+                            var key = entry.getKey();
+                            var data = entry.getValue();
+                            var statement = data != null ? insertConfig : deleteConfig;
+                            statement.bindString(1, moduleName);
+                            statement.bindLong(2, userId);
+                            statement.bindString(3, group);
+                            statement.bindString(4, key);
+                            if (data != null) {
+                                statement.bindBlob(5, data);
+                                statement.executeInsert();
+                            } else {
+                                statement.executeUpdateDelete();
+                            }
+                        }
+                        insertConfig.clearBindings();
+                        deleteConfig.clearBindings();
+                    }
+                });
+                for (var entry : values.entrySet()) {
+                    var key = entry.getKey();
+                    var data = changes.get(key);
+                    if (data != null) {
+                        newPrefs.put(key, entry.getValue());
+                        size.put(group, key, PrefsSize.of(key, data));
+                    } else {
+                        newPrefs.remove(key);
+                        size.remove(group, key);
+                    }
+                }
+            }
             return newPrefs;
         });
     }
@@ -510,6 +656,12 @@ public class ConfigManager {
         if (config != null) {
             config.remove(group);
         }
+        var size = cachedConfigSize.getOrDefault(new Pair<>(moduleName, userId), null);
+        if (size != null) {
+            synchronized (size) {
+                size.removeGroup(group);
+            }
+        }
     }
 
     public HashMap<String, Object> getModulePrefs(String moduleName, int userId, String group) {
@@ -523,7 +675,8 @@ public class ConfigManager {
             lastModuleCacheTime = 0;
         }
         cachedModule.clear();
-        cachedScope.clear();
+        cachedModuleByAppId = new SparseArray<>();
+        cachedScope = ScopeIndex.EMPTY;
     }
 
     private synchronized void cacheModules() {
@@ -563,56 +716,9 @@ public class ConfigManager {
                 modules.add(module);
             }
 
-            modules.stream().parallel().filter(m -> {
-                var oldModule = cachedModule.get(m.packageName);
-                PackageInfo pkgInfo = null;
-                try {
-                    pkgInfo = PackageService.getPackageInfoFromAllUsers(m.packageName, MATCH_ALL_FLAGS).values().stream().findFirst().orElse(null);
-                } catch (Throwable e) {
-                    Log.w(TAG, "Get package info of " + m.packageName, e);
-                }
-                if (pkgInfo == null || pkgInfo.applicationInfo == null) {
-                    Log.w(TAG, "Failed to find package info of " + m.packageName);
-                    obsoleteModules.add(m.packageName);
-                    return false;
-                }
-
-                if (oldModule != null &&
-                        pkgInfo.applicationInfo.sourceDir != null &&
-                        m.apkPath != null && oldModule.apkPath != null &&
-                        existsInGlobalNamespace(m.apkPath) &&
-                        Objects.equals(m.apkPath, oldModule.apkPath) &&
-                        Objects.equals(new File(pkgInfo.applicationInfo.sourceDir).getParent(), new File(m.apkPath).getParent())) {
-                    if (oldModule.appId != -1) {
-                        Log.d(TAG, m.packageName + " did not change, skip caching it");
-                    } else {
-                        // cache from system server, update application info
-                        oldModule.applicationInfo = pkgInfo.applicationInfo;
-                    }
-                    return false;
-                }
-                m.apkPath = getModuleApkPath(pkgInfo.applicationInfo);
-                if (m.apkPath == null) {
-                    Log.w(TAG, "Failed to find path of " + m.packageName);
-                    obsoleteModules.add(m.packageName);
-                    return false;
-                } else {
-                    obsoletePaths.put(m.packageName, m.apkPath);
-                }
-                m.appId = pkgInfo.applicationInfo.uid;
-                m.applicationInfo = pkgInfo.applicationInfo;
-                m.service = oldModule != null ? oldModule.service : new LSPInjectedModuleService(m.packageName);
-                return true;
-            }).forEach(m -> {
-                var file = ConfigFileManager.loadModule(m.apkPath, dexObfuscate);
-                if (file == null) {
-                    Log.w(TAG, "failed to load module " + m.packageName);
-                    obsoleteModules.add(m.packageName);
-                    return;
-                }
-                m.file = file;
-                cachedModule.put(m.packageName, m);
-            });
+            modules.stream().parallel()
+                    .filter(m -> prepareModule(m, obsoleteModules, obsoletePaths))
+                    .forEach(m -> loadModuleFile(m, obsoleteModules, toClose));
 
             if (PackageService.isAlive()) {
                 obsoleteModules.forEach(this::removeModuleWithoutCache);
@@ -620,37 +726,288 @@ public class ConfigManager {
             } else {
                 Log.w(TAG, "pm is dead while caching. invalidating...");
                 clearCache();
+                toClose.forEach(SharedMemory::close);
                 return;
             }
         }
-        Log.d(TAG, "cached modules");
+        indexModules();
+        ConfigFileManager.pruneModuleCache(cachedModule.values().stream().map(m -> m.apkPath).collect(Collectors.toList()));
+        if (moduleAot && moduleCompiler != null) {
+            moduleCompiler.prune();
+        }
+        fullModuleCaches++;
+        Log.d(TAG, "cached modules (full: " + fullModuleCaches + ", incremental: " + incrementalModuleCaches + ")");
         for (var module : cachedModule.entrySet()) {
             Log.d(TAG, module.getKey() + " " + module.getValue().apkPath);
         }
-        cacheScopes();
+        if (!cacheScopes() && !toClose.isEmpty()) {
+            // the published scope may still serve the replaced modules
+            clearCache();
+        }
         toClose.forEach(SharedMemory::close);
     }
 
-    private synchronized void cacheScopes() {
+    // Re-read a single module, then refresh only the apps in its scope
+    private synchronized void cacheModule(String packageName) {
         // skip caching when pm is not yet available
-        if (!PackageService.isAlive()) return;
+        if (!PackageService.isAlive() || !UserService.isAlive()) return;
+        boolean outdated;
         synchronized (cacheHandler) {
-            if (lastScopeCacheTime >= requestScopeCacheTime) return;
+            outdated = lastModuleCacheTime == 0 || lastModuleCacheTime < requestModuleCacheTime;
+        }
+        if (outdated) {
+            // a full rebuild is pending anyway
+            updateCaches(true);
+            return;
+        }
+        Module module = null;
+        try (Cursor cursor = db.query("modules", new String[]{"apk_path"},
+                "module_pkg_name = ? AND enabled = 1", new String[]{packageName}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                module = new Module();
+                module.packageName = packageName;
+                module.apkPath = cursor.getString(cursor.getColumnIndexOrThrow("apk_path"));
+            }
+        }
+        Set<String> obsoleteModules = new HashSet<>();
+        // packageName, apkPath
+        Map<String, String> obsoletePaths = new HashMap<>();
+        // dexes of the replaced or removed module, closed once it can no longer be served
+        Set<SharedMemory> toClose = new HashSet<>();
+        if (module == null || packageName.equals("lspd")) {
+            closeLater(cachedModule.remove(packageName), toClose);
+        } else if (prepareModule(module, obsoleteModules, obsoletePaths)) {
+            loadModuleFile(module, obsoleteModules, toClose);
+        }
+        if (PackageService.isAlive()) {
+            obsoleteModules.forEach(m -> {
+                closeLater(cachedModule.remove(m), toClose);
+                removeModuleWithoutCache(m);
+            });
+            obsoletePaths.forEach((name, path) -> updateModuleApkPath(name, path, true));
+        } else {
+            Log.w(TAG, "pm is dead while caching. invalidating...");
+            clearCache();
+            toClose.forEach(SharedMemory::close);
+            return;
+        }
+        indexModules();
+        incrementalModuleCaches++;
+        Log.d(TAG, "cached module " + packageName + " (full: " + fullModuleCaches + ", incremental: " + incrementalModuleCaches + ")");
+
+        var apps = new LinkedHashSet<Pair<String, Integer>>();
+        cachedScope.apps.forEach((app, scope) -> {
+            if (scope.values().stream().anyMatch(modules -> modules.contains(packageName)))
+                apps.add(app);
+        });
+        try (Cursor cursor = db.query(true, "scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"app_pkg_name", "user_id"},
+                "module_pkg_name = ?", new String[]{packageName}, null, null, null, null)) {
+            int appPkgNameIdx = cursor.getColumnIndex("app_pkg_name");
+            int userIdIdx = cursor.getColumnIndex("user_id");
+            while (cursor.moveToNext()) {
+                apps.add(new Pair<>(cursor.getString(appPkgNameIdx), cursor.getInt(userIdIdx)));
+            }
+        }
+        if (!cacheAppScopes(apps) && !toClose.isEmpty()) {
+            // the published scope may still serve the replaced modules
+            clearCache();
+        }
+        toClose.forEach(SharedMemory::close);
+    }
+
+    private static void closeLater(Module module, Set<SharedMemory> toClose) {
+        if (module != null && module.file != null) {
+            toClose.addAll(module.file.preLoadedDexes);
+        }
+    }
+
+    // returns whether the module has to be (re)loaded
+    private boolean prepareModule(Module m, Set<String> obsoleteModules, Map<String, String> obsoletePaths) {
+        var oldModule = cachedModule.get(m.packageName);
+        PackageInfo pkgInfo = null;
+        try {
+            pkgInfo = PackageService.getPackageInfoFromAllUsers(m.packageName, MATCH_ALL_FLAGS | PackageManager.GET_META_DATA).values().stream().findFirst().orElse(null);
+        } catch (Throwable e) {
+            Log.w(TAG, "Get package info of " + m.packageName, e);
+        }
+        if (pkgInfo == null || pkgInfo.applicationInfo == null) {
+            Log.w(TAG, "Failed to find package info of " + m.packageName);
+            obsoleteModules.add(m.packageName);
+            return false;
+        }
+
+        if (oldModule != null &&
+                pkgInfo.applicationInfo.sourceDir != null &&
+                m.apkPath != null && oldModule.apkPath != null &&
+                existsInGlobalNamespace(m.apkPath) &&
+                Objects.equals(m.apkPath, oldModule.apkPath) &&
+                Objects.equals(new File(pkgInfo.applicationInfo.sourceDir).getParent(), new File(m.apkPath).getParent())) {
+            if (oldModule.appId != -1) {
+                Log.d(TAG, m.packageName + " did not change, skip caching it");
+            } else {
+                // cache from system server, update application info
+                oldModule.applicationInfo = pkgInfo.applicationInfo;
+                readModuleMetaData(oldModule);
+            }
+            return false;
+        }
+        m.apkPath = getModuleApkPath(pkgInfo.applicationInfo);
+        if (m.apkPath == null) {
+            Log.w(TAG, "Failed to find path of " + m.packageName);
+            obsoleteModules.add(m.packageName);
+            return false;
+        } else {
+            obsoletePaths.put(m.packageName, m.apkPath);
+        }
+        m.appId = pkgInfo.applicationInfo.uid;
+        m.applicationInfo = pkgInfo.applicationInfo;
+        m.service = oldModule != null ? oldModule.service : new LSPInjectedModuleService(m.packageName);
+        readModuleMetaData(m);
+        return true;
+    }
+
+    // parsed here once so that module processes don't have to read their own manifest
+    private static void readModuleMetaData(Module m) {
+        var metaData = m.applicationInfo.metaData;
+        m.xposedMinVersion = -1;
+        m.xposedSharedPrefs = false;
+        if (metaData == null) return;
+        var minVersionRaw = metaData.get("xposedminversion");
+        if (minVersionRaw instanceof Integer) {
+            m.xposedMinVersion = (Integer) minVersionRaw;
+        } else if (minVersionRaw instanceof String) {
+            var str = (String) minVersionRaw;
+            int result = 0;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c < '0' || c > '9') break;
+                result = result * 10 + (c - '0');
+            }
+            m.xposedMinVersion = result;
+        }
+        m.xposedSharedPrefs = metaData.containsKey("xposedsharedprefs");
+    }
+
+    private void loadModuleFile(Module m, Set<String> obsoleteModules, Set<SharedMemory> toClose) {
+        var file = ConfigFileManager.loadModule(m.apkPath, dexObfuscate);
+        if (file == null) {
+            Log.w(TAG, "failed to load module " + m.packageName);
+            obsoleteModules.add(m.packageName);
+            return;
+        }
+        m.file = file;
+        compileModule(file);
+        closeLater(cachedModule.put(m.packageName, m), toClose);
+    }
+
+    private void compileModule(PreLoadedApk file) {
+        if (moduleAot && moduleCompiler != null) {
+            moduleCompiler.submit(file);
+        }
+    }
+
+    // cached modules are shared between binder threads, so the compiled jar is filled in on a copy
+    Module withCompiledDex(Module module) {
+        if (!moduleAot || moduleCompiler == null || module.file == null) return module;
+        var compiledDexPath = moduleCompiler.getCompiledDexPath(module.file);
+        if (compiledDexPath == null) return module;
+        var file = new PreLoadedApk();
+        file.preLoadedDexes = module.file.preLoadedDexes;
+        file.moduleClassNames = module.file.moduleClassNames;
+        file.moduleLibraryNames = module.file.moduleLibraryNames;
+        file.legacy = module.file.legacy;
+        file.compiledDexPath = compiledDexPath;
+        var copy = new Module();
+        copy.packageName = module.packageName;
+        copy.appId = module.appId;
+        copy.apkPath = module.apkPath;
+        copy.file = file;
+        copy.applicationInfo = module.applicationInfo;
+        copy.service = module.service;
+        copy.xposedMinVersion = module.xposedMinVersion;
+        copy.xposedSharedPrefs = module.xposedSharedPrefs;
+        return copy;
+    }
+
+    // returns whether a new scope was published
+    private synchronized boolean cacheScopes() {
+        // skip caching when pm is not yet available
+        if (!PackageService.isAlive()) return false;
+        synchronized (cacheHandler) {
+            if (lastScopeCacheTime >= requestScopeCacheTime) return false;
             else lastScopeCacheTime = SystemClock.elapsedRealtime();
         }
-        cachedScope.clear();
+        try {
+            // the index may have been saved before packages were updated
+            PackageService.validateProcessIndex();
+        } catch (RemoteException e) {
+            Log.w(TAG, "validate process index", e);
+        }
+        final var obsoletePackages = new HashSet<Application>();
+        final var obsoleteModules = new HashSet<Application>();
+        final var apps = new LinkedHashMap<Pair<String, Integer>, Map<ProcessScope, List<String>>>();
+        final var denylist = new HashSet<>(getDenyListPackages());
+        queryScope("enabled = 1", null, obsoleteModules).forEach((app, modules) -> {
+            var scope = fetchAppScope(app, modules, denylist);
+            if (scope.isEmpty()) {
+                obsoletePackages.add(app);
+            } else {
+                apps.put(new Pair<>(app.packageName, app.userId), scope);
+            }
+        });
+        PackageService.saveProcessIndex();
+        if (!removeObsoleteScopes(obsoletePackages, obsoleteModules)) return false;
+        fullScopeCaches++;
+        publishScope(apps);
+        return true;
+    }
+
+    // Recompute the scope of the given apps only, leaving every other app untouched, returns whether a new scope was published
+    private synchronized boolean cacheAppScopes(Collection<Pair<String, Integer>> targets) {
+        // skip caching when pm is not yet available
+        if (!PackageService.isAlive()) return false;
+        boolean outdated;
+        synchronized (cacheHandler) {
+            outdated = lastScopeCacheTime == 0 || lastScopeCacheTime < requestScopeCacheTime;
+            if (outdated) requestScopeCacheTime = SystemClock.elapsedRealtime();
+        }
+        if (outdated) {
+            // there is no complete scope to patch yet
+            return cacheScopes();
+        }
+        final var obsoletePackages = new HashSet<Application>();
+        final var obsoleteModules = new HashSet<Application>();
+        final var apps = new LinkedHashMap<>(cachedScope.apps);
+        final var denylist = new HashSet<>(getDenyListPackages());
+        for (var target : targets) {
+            apps.remove(target);
+            queryScope("enabled = 1 AND app_pkg_name = ? AND user_id = ?",
+                    new String[]{target.first, String.valueOf(target.second)}, obsoleteModules).forEach((app, modules) -> {
+                var scope = fetchAppScope(app, modules, denylist);
+                if (scope.isEmpty()) {
+                    obsoletePackages.add(app);
+                } else {
+                    apps.put(target, scope);
+                }
+            });
+        }
+        PackageService.saveProcessIndex();
+        if (!removeObsoleteScopes(obsoletePackages, obsoleteModules)) return false;
+        incrementalScopeCaches++;
+        publishScope(apps);
+        return true;
+    }
+
+    // app, enabled modules scoped to it that are available in its user
+    private Map<Application, List<String>> queryScope(String selection, String[] selectionArgs, Set<Application> obsoleteModules) {
+        final var result = new LinkedHashMap<Pair<String, Integer>, Pair<Application, List<String>>>();
         try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"app_pkg_name", "module_pkg_name", "user_id"},
-                "enabled = 1", null, null, null, null)) {
+                selection, selectionArgs, null, null, null)) {
             int appPkgNameIdx = cursor.getColumnIndex("app_pkg_name");
             int modulePkgNameIdx = cursor.getColumnIndex("module_pkg_name");
             int userIdIdx = cursor.getColumnIndex("user_id");
 
-            final var obsoletePackages = new HashSet<Application>();
-            final var obsoleteModules = new HashSet<Application>();
             final var moduleAvailability = new HashMap<Pair<String, Integer>, Boolean>();
-            final var cachedProcessScope = new HashMap<Pair<String, Integer>, List<ProcessScope>>();
-
-            final var denylist = new HashSet<>(getDenyListPackages());
             while (cursor.moveToNext()) {
                 Application app = new Application();
                 app.packageName = cursor.getString(appPkgNameIdx);
@@ -677,59 +1034,71 @@ public class ConfigManager {
                 // system server always loads database
                 if (app.packageName.equals("system")) continue;
 
-                try {
-                    List<ProcessScope> processesScope = cachedProcessScope.computeIfAbsent(new Pair<>(app.packageName, app.userId), (k) -> {
-                        try {
-                            if (denylist.contains(app.packageName))
-                                Log.w(TAG, app.packageName + " is on denylist. It may not take effect.");
-                            return getAssociatedProcesses(app);
-                        } catch (RemoteException e) {
-                            return Collections.emptyList();
-                        }
-                    });
-                    if (processesScope.isEmpty()) {
-                        obsoletePackages.add(app);
-                        continue;
-                    }
-                    var module = cachedModule.get(modulePackageName);
-                    assert module != null;
-                    for (ProcessScope processScope : processesScope) {
-                        cachedScope.computeIfAbsent(processScope,
-                                ignored -> new LinkedList<>()).add(module);
-                        // Always allow the module to inject itself
-                        if (modulePackageName.equals(app.packageName)) {
-                            var appId = processScope.uid % PER_USER_RANGE;
-                            for (var user : UserService.getUsers()) {
-                                var moduleUid = user.id * PER_USER_RANGE + appId;
-                                if (moduleUid == processScope.uid) continue; // skip duplicate
-                                var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
-                                cachedScope.computeIfAbsent(moduleSelf,
-                                        ignored -> new LinkedList<>()).add(module);
-                            }
-                        }
+                result.computeIfAbsent(new Pair<>(app.packageName, app.userId), k -> new Pair<>(app, new ArrayList<>()))
+                        .second.add(modulePackageName);
+            }
+        }
+        final var scope = new LinkedHashMap<Application, List<String>>();
+        result.values().forEach(p -> scope.put(p.first, p.second));
+        return scope;
+    }
+
+    // process, names of the modules to load into it; empty if the app has no process
+    private Map<ProcessScope, List<String>> fetchAppScope(Application app, List<String> modules, Set<String> denylist) {
+        List<ProcessScope> processesScope;
+        try {
+            if (denylist.contains(app.packageName))
+                Log.w(TAG, app.packageName + " is on denylist. It may not take effect.");
+            processesScope = getAssociatedProcesses(app);
+        } catch (RemoteException e) {
+            return Collections.emptyMap();
+        }
+        var scope = new LinkedHashMap<ProcessScope, List<String>>();
+        try {
+            for (ProcessScope processScope : processesScope) {
+                scope.computeIfAbsent(processScope, ignored -> new ArrayList<>()).addAll(modules);
+                // Always allow the module to inject itself
+                if (modules.contains(app.packageName)) {
+                    var appId = processScope.uid % PER_USER_RANGE;
+                    for (var user : UserService.getUsers()) {
+                        var moduleUid = user.id * PER_USER_RANGE + appId;
+                        if (moduleUid == processScope.uid) continue; // skip duplicate
+                        var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
+                        scope.computeIfAbsent(moduleSelf, ignored -> new ArrayList<>()).add(app.packageName);
                     }
-                } catch (RemoteException e) {
-                    Log.e(TAG, Log.getStackTraceString(e));
                 }
             }
-            if (PackageService.isAlive()) {
-                for (Application obsoletePackage : obsoletePackages) {
-                    Log.d(TAG, "removing obsolete package: " + obsoletePackage.packageName + "/" + obsoletePackage.userId);
-                    removeAppWithoutCache(obsoletePackage);
-                }
-                for (Application obsoleteModule : obsoleteModules) {
-                    Log.d(TAG, "removing obsolete module: " + obsoleteModule.packageName + "/" + obsoleteModule.userId);
-                    removeModuleScopeWithoutCache(obsoleteModule);
-                    removeBlockedScopeRequest(obsoleteModule.packageName);
-                }
-            } else {
-                Log.w(TAG, "pm is dead while caching. invalidating...");
-                clearCache();
-                return;
+        } catch (RemoteException e) {
+            Log.e(TAG, Log.getStackTraceString(e));
+        }
+        return scope;
+    }
+
+    // returns false if pm died and the cache got invalidated
+    private boolean removeObsoleteScopes(Set<Application> obsoletePackages, Set<Application> obsoleteModules) {
+        if (PackageService.isAlive()) {
+            for (Application obsoletePackage : obsoletePackages) {
+                Log.d(TAG, "removing obsolete package: " + obsoletePackage.packageName + "/" + obsoletePackage.userId);
+                removeAppWithoutCache(obsoletePackage);
+            }
+            for (Application obsoleteModule : obsoleteModules) {
+                Log.d(TAG, "removing obsolete module: " + obsoleteModule.packageName + "/" + obsoleteModule.userId);
+                removeModuleScopeWithoutCache(obsoleteModule);
+                removeBlockedScopeRequest(obsoleteModule.packageName);
             }
+            return true;
+        } else {
+            Log.w(TAG, "pm is dead while caching. invalidating...");
+            clearCache();
+            return false;
         }
-        Log.d(TAG, "cached scope");
-        cachedScope.forEach((ps, modules) -> {
+    }
+
+    private void publishScope(Map<Pair<String, Integer>, Map<ProcessScope, List<String>>> apps) {
+        var index = new ScopeIndex(apps, cachedModule);
+        cachedScope = index;
+        Log.d(TAG, "cached scope (full: " + fullScopeCaches + ", incremental: " + incrementalScopeCaches + ")");
+        index.scopes.forEach((ps, modules) -> {
             Log.d(TAG, ps.processName + "/" + ps.uid);
             modules.forEach(module -> Log.d(TAG, "\t" + module.packageName));
         });
@@ -737,16 +1106,16 @@ public class ConfigManager {
 
     // This is called when a new process created, use the cached result
     public List<Module> getModulesForProcess(String processName, int uid) {
-        return isManager(uid) ? Collections.emptyList() : cachedScope.getOrDefault(new ProcessScope(processName, uid), Collections.emptyList());
+        return isManager(uid) ? Collections.emptyList() : cachedScope.scopes.getOrDefault(new ProcessScope(processName, uid), Collections.emptyList());
     }
 
     // This is called when a new process created, use the cached result
     public boolean shouldSkipProcess(ProcessScope scope) {
-        return !cachedScope.containsKey(scope) && !isManager(scope.uid);
+        return !cachedScope.scopes.containsKey(scope) && !isManager(scope.uid);
     }
 
     public boolean isUidHooked(int uid) {
-        return cachedScope.keySet().stream().reduce(false, (p, scope) -> p || scope.uid == uid, Boolean::logicalOr);
+        return cachedScope.uids.indexOfKey(uid) >= 0;
     }
 
     @Nullable
@@ -814,7 +1183,7 @@ public class ConfigManager {
         // skip caching again
         if (!force && count > 0) {
             // Called by oneway binder
-            updateCaches(true);
+            cacheModule(packageName);
             return true;
         }
         return count > 0;
@@ -842,13 +1211,15 @@ public class ConfigManager {
         if (mid == -1) return false;
         executeInTransaction(() -> {
             db.delete("scope", "mid = ?", new String[]{String.valueOf(mid)});
-            for (Application app : scopes) {
-                if (app.packageName.equals("system") && app.userId != 0) continue;
-                ContentValues values = new ContentValues();
-                values.put("mid", mid);
-                values.put("app_pkg_name", app.packageName);
-                values.put("user_id", app.userId);
-                db.insertWithOnConflict("scope", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            synchronized (insertScope) {
+                insertScope.bindLong(1, mid);
+                for (Application app : scopes) {
+                    if (app.packageName.equals("system") && app.userId != 0) continue;
+                    insertScope.bindString(2, app.packageName);
+                    insertScope.bindLong(3, app.userId);
+                    insertScope.executeInsert();
+                }
+                insertScope.clearBindings();
             }
         });
         // Called by manager, should be async
@@ -862,11 +1233,13 @@ public class ConfigManager {
         if (mid == -1) return false;
         if (scopePackageName.equals("system") && userId != 0) return false;
         executeInTransaction(() -> {
-            ContentValues values = new ContentValues();
-            values.put("mid", mid);
-            values.put("app_pkg_name", scopePackageName);
-            values.put("user_id", userId);
-            db.insertWithOnConflict("scope", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            synchronized (insertScope) {
+                insertScope.bindLong(1, mid);
+                insertScope.bindString(2, scopePackageName);
+                insertScope.bindLong(3, userId);
+                insertScope.executeInsert();
+                insertScope.clearBindings();
+            }
         });
         // Called by xposed service, should be async
         updateCaches(false);
@@ -989,9 +1362,21 @@ public class ConfigManager {
         updateCaches(true);
     }
 
-    public void updateAppCache() {
+    public void updateModuleCache(String packageName) {
         // Called by oneway binder
-        cacheScopes();
+        cacheModule(packageName);
+    }
+
+    public void updateAppCache(String packageName, int uid) {
+        // Called by oneway binder
+        var apps = new LinkedHashSet<Pair<String, Integer>>();
+        if (packageName != null) apps.add(new Pair<>(packageName, uid / PER_USER_RANGE));
+        // packages sharing the uid
+        cachedScope.apps.forEach((app, scope) -> {
+            if (scope.keySet().stream().anyMatch(processScope -> processScope.uid == uid))
+                apps.add(app);
+        });
+        cacheAppScopes(apps);
     }
 
     public void setVerboseLog(boolean on) {
@@ -1048,6 +1433,30 @@ public class ConfigManager {
         enableStatusNotification = enable;
     }
 
+    public boolean hookProfiler() {
+        return hookProfiler;
+    }
+
+    public void setHookProfiler(boolean enable) {
+        updateModulePrefs("lspd", 0, "config", "enable_hook_profiler", enable);
+        hookProfiler = enable;
+    }
+
+    public boolean moduleAot() {
+        return moduleAot;
+    }
+
+    public void setModuleAot(boolean enable) {
+        updateModulePrefs("lspd", 0, "config", "enable_module_aot", enable);
+        moduleAot = enable;
+        if (moduleCompiler == null) return;
+        if (enable) {
+            cacheHandler.post(() -> cachedModule.values().forEach(m -> compileModule(m.file)));
+        } else {
+            moduleCompiler.clear();
+        }
+    }
+
     public ParcelFileDescriptor getManagerApk() {
         try {
             return ConfigFileManager.getManagerApk();
@@ -1114,12 +1523,17 @@ public class ConfigManager {
         return path.toString();
     }
 
-    // this is slow, avoid using it
+    // looked up by app id, so any user of the module matches
     public Module getModule(int uid) {
+        return cachedModuleByAppId.get(uid % PER_USER_RANGE);
+    }
+
+    private void indexModules() {
+        var index = new SparseArray<Module>(cachedModule.size());
         for (var module : cachedModule.values()) {
-            if (module.appId == uid % PER_USER_RANGE) return module;
+            if (module.appId >= 0) index.put(module.appId, module);
         }
-        return null;
+        cachedModuleByAppId = index;
     }
 
     private void walkFileTree(Path rootDir, Consumer<Path> action) throws IOException {
@@ -1180,7 +1594,7 @@ public class ConfigManager {
 
     public void exportScopes(ZipOutputStream os) throws IOException {
         os.putNextEntry(new ZipEntry("scopes.txt"));
-        cachedScope.forEach((scope, modules) -> {
+        cachedScope.scopes.forEach((scope, modules) -> {
             try {
                 os.write((scope.processName + "/" + scope.uid + "\n").getBytes(StandardCharsets.UTF_8));
                 for (var module : modules) {
@@ -26,10 +26,12 @@ import static org.lsposed.lspd.ILSPManagerService.DEX2OAT_SELINUX_PERMISSIVE;
 import static org.lsposed.lspd.ILSPManagerService.DEX2OAT_SEPOLICY_INCORRECT;
 
 import android.net.LocalServerSocket;
+import android.net.LocalSocket;
 import android.os.Build;
 import android.os.FileObserver;
 import android.os.Process;
 import android.os.SELinux;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
@@ -44,6 +46,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @RequiresApi(Build.VERSION_CODES.Q)
 public class Dex2OatService implements Runnable {
@@ -51,11 +58,20 @@ public class Dex2OatService implements Runnable {
     private static final String WRAPPER32 = "bin/dex2oat32";
     private static final String WRAPPER64 = "bin/dex2oat64";
 
+    private static final int WORKERS = 4;
+
     private final String[] dex2oatArray = new String[4];
     private final FileDescriptor[] fdArray = new FileDescriptor[4];
     private final FileObserver selinuxObserver;
     private int compatibility = DEX2OAT_OK;
 
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final LongAdder served = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
     private void openDex2oat(int id, String path) {
         try {
             var fd = Os.open(path, OsConstants.O_RDONLY, 0);
@@ -183,22 +199,23 @@ public class Dex2OatService implements Runnable {
             SELinux.setFileContext(WRAPPER64, magisk_file);
             setSockCreateContext("u:r:installd:s0");
         }
+        // dexopt runs many dex2oat in parallel, so clients must not queue behind each other
+        var workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            var thread = new Thread(r, "dex2oat-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
         try (var server = new LocalServerSocket(sockPath)) {
             setSockCreateContext(null);
             while (true) {
-                try (var client = server.accept();
-                     var is = client.getInputStream();
-                     var os = client.getOutputStream()) {
-                    var id = is.read();
-                    var fd = new FileDescriptor[]{fdArray[id]};
-                    client.setFileDescriptorsForSend(fd);
-                    os.write(1);
-                    Log.d(TAG, "Sent stock fd: is64 = " + ((id & 0b10) != 0) +
-                            ", isDebug = " + ((id & 0b01) != 0));
-                }
+                var client = server.accept();
+                var accepted = SystemClock.elapsedRealtimeNanos();
+                maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+                workers.execute(() -> serve(client, accepted));
             }
         } catch (IOException e) {
             Log.e(TAG, "Dex2oat wrapper daemon crashed", e);
+            workers.shutdown();
             if (compatibility == DEX2OAT_OK) {
                 doMount(false);
                 compatibility = DEX2OAT_CRASHED;
@@ -206,10 +223,47 @@ public class Dex2OatService implements Runnable {
         }
     }
 
+    private void serve(LocalSocket client, long accepted) {
+        queued.decrementAndGet();
+        // a misbehaving client only fails its own request
+        try (client; var is = client.getInputStream(); var os = client.getOutputStream()) {
+            var id = is.read();
+            if (id < 0 || id >= fdArray.length || fdArray[id] == null) {
+                throw new IOException("Unexpected dex2oat id " + id);
+            }
+            var fd = new FileDescriptor[]{fdArray[id]};
+            client.setFileDescriptorsForSend(fd);
+            os.write(1);
+            var latency = SystemClock.elapsedRealtimeNanos() - accepted;
+            served.increment();
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            Log.d(TAG, "Sent stock fd: is64 = " + ((id & 0b10) != 0) +
+                    ", isDebug = " + ((id & 0b01) != 0));
+        } catch (IOException e) {
+            failed.increment();
+            Log.w(TAG, "Failed to serve dex2oat wrapper", e);
+        }
+    }
+
+    String dump() {
+        var count = served.sum();
+        return String.format(Locale.ROOT,
+                "compatibility: %d\nserved: %d\nfailed: %d\nqueued: %d\nmax queued: %d\navg latency: %dus\nmax latency: %dus\n",
+                compatibility, count, failed.sum(), queued.get(), maxQueued.get(),
+                count == 0 ? 0 : latencyNanos.sum() / count / 1000, maxLatencyNanos.get() / 1000);
+    }
+
     public int getCompatibility() {
         return compatibility;
     }
 
+    // the release dex2oat of the given bitness, it runs through the wrapper when that is mounted
+    @Nullable
+    String getDex2oatPath(boolean is64) {
+        return dex2oatArray[is64 ? 2 : 0];
+    }
+
     private native void doMountNative(boolean enabled,
                                       String r32, String d32, String r64, String d64);
 
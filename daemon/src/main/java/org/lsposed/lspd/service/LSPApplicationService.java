@@ -31,9 +31,16 @@ import android.util.Pair;
 
 import androidx.annotation.NonNull;
 
+import org.lsposed.lspd.models.HookStats;
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -42,8 +49,21 @@ import java.util.stream.Collectors;
 public class LSPApplicationService extends ILSPApplicationService.Stub {
     final static int DEX_TRANSACTION_CODE = 1310096052;
     final static int OBFUSCATION_MAP_TRANSACTION_CODE = 724533732;
+    final static int HOOK_PROFILER_TRANSACTION_CODE = 1212895814;
+    // bounds the stats kept of dead processes, merged by hooked member and callback or by module
+    private final static int MAX_RETIRED_STATS = 4096;
     // key: <uid, pid>
     private final static Map<Pair<Integer, Integer>, ProcessInfo> processes = new ConcurrentHashMap<>();
+    // key: <uid, pid> of a live process, value: the latest cumulative report
+    private final static Map<Pair<Integer, Integer>, List<HookStats>> hookStats = new ConcurrentHashMap<>();
+    // key: <uid, pid> of a live process, value: the latest module startup report
+    private final static Map<Pair<Integer, Integer>, List<ModuleStartupStats>> startupStats = new ConcurrentHashMap<>();
+    // key: <uid, pid> of a live process, value: the latest reflection cache report
+    private final static Map<Pair<Integer, Integer>, ReflectionCacheStats> cacheStats = new ConcurrentHashMap<>();
+    // the last reports of dead processes, guarded by themselves
+    private final static Map<List<String>, HookStats> retiredHookStats = new HashMap<>();
+    private final static Map<List<String>, ModuleStartupStats> retiredStartupStats = new HashMap<>();
+    private final static ReflectionCacheStats retiredCacheStats = new ReflectionCacheStats();
 
     static class ProcessInfo implements DeathRecipient {
         final int uid;
@@ -65,7 +85,9 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         public void binderDied() {
             Log.d(TAG, this + " is dead");
             heartBeat.unlinkToDeath(this, 0);
-            processes.remove(new Pair<>(uid, pid), this);
+            var key = new Pair<>(uid, pid);
+            processes.remove(key, this);
+            retireStats(key);
         }
 
         @NonNull
@@ -101,6 +123,31 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
                     // return val = key if obfuscation disabled
                     reply.writeString(obfuscation ? entry.getValue() : entry.getKey());
                 }
+                // read along at startup, so hooked processes don't have to ask separately
+                reply.writeInt(ConfigManager.getInstance().hookProfiler() ? 1 : 0);
+                return true;
+            }
+            case HOOK_PROFILER_TRANSACTION_CODE: {
+                var key = new Pair<>(getCallingUid(), getCallingPid());
+                var processInfo = processes.get(key);
+                if (processInfo == null) return false;
+                var enabled = ConfigManager.getInstance().hookProfiler();
+                var stats = data.createTypedArrayList(HookStats.CREATOR);
+                var startup = data.createTypedArrayList(ModuleStartupStats.CREATOR);
+                var cache = data.readTypedObject(ReflectionCacheStats.CREATOR);
+                if (enabled && stats != null) {
+                    hookStats.put(key, stats);
+                }
+                if (enabled && startup != null) {
+                    startup.forEach(s -> s.processName = processInfo.processName);
+                    startupStats.put(key, startup);
+                }
+                if (enabled && cache != null) {
+                    cacheStats.put(key, cache);
+                }
+                // the process may have died while reporting
+                if (!processes.containsKey(key)) retireStats(key);
+                reply.writeInt(enabled ? 1 : 0);
                 return true;
             }
         }
@@ -128,12 +175,14 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
 
     @Override
     public List<Module> getLegacyModulesList() throws RemoteException {
-        return getAllModulesList().stream().filter(m -> m.file.legacy).collect(Collectors.toList());
+        return getAllModulesList().stream().filter(m -> m.file.legacy)
+                .map(ConfigManager.getInstance()::withCompiledDex).collect(Collectors.toList());
     }
 
     @Override
     public List<Module> getModulesList() throws RemoteException {
-        return getAllModulesList().stream().filter(m -> !m.file.legacy).collect(Collectors.toList());
+        return getAllModulesList().stream().filter(m -> !m.file.legacy)
+                .map(ConfigManager.getInstance()::withCompiledDex).collect(Collectors.toList());
     }
 
     @Override
@@ -152,6 +201,130 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         return ConfigManager.getInstance().getManagerApk();
     }
 
+    static void clearHookStats() {
+        hookStats.clear();
+        startupStats.clear();
+        synchronized (retiredHookStats) {
+            retiredHookStats.clear();
+        }
+        synchronized (retiredStartupStats) {
+            retiredStartupStats.clear();
+        }
+        cacheStats.clear();
+        synchronized (retiredCacheStats) {
+            retiredCacheStats.hits = 0;
+            retiredCacheStats.misses = 0;
+            retiredCacheStats.members = 0;
+            retiredCacheStats.classes = 0;
+        }
+    }
+
+    // folds the last reports of a dead process into the retired stats
+    private static void retireStats(Pair<Integer, Integer> key) {
+        var hooks = hookStats.remove(key);
+        if (hooks != null) {
+            synchronized (retiredHookStats) {
+                mergeHookStats(retiredHookStats, hooks, MAX_RETIRED_STATS);
+            }
+        }
+        var startup = startupStats.remove(key);
+        if (startup != null) {
+            synchronized (retiredStartupStats) {
+                mergeStartupStats(retiredStartupStats, startup, MAX_RETIRED_STATS);
+            }
+        }
+        var cache = cacheStats.remove(key);
+        if (cache != null) {
+            synchronized (retiredCacheStats) {
+                mergeCacheStats(retiredCacheStats, cache);
+            }
+        }
+    }
+
+    private static void mergeCacheStats(ReflectionCacheStats sum, ReflectionCacheStats stats) {
+        sum.hits += stats.hits;
+        sum.misses += stats.misses;
+        sum.members += stats.members;
+        sum.classes += stats.classes;
+    }
+
+    // sums the reflection caches of all processes
+    static ReflectionCacheStats getReflectionCacheStats() {
+        var sum = new ReflectionCacheStats();
+        synchronized (retiredCacheStats) {
+            mergeCacheStats(sum, retiredCacheStats);
+        }
+        for (var stats : cacheStats.values()) {
+            mergeCacheStats(sum, stats);
+        }
+        return sum;
+    }
+
+    private static void mergeStartupStats(Map<List<String>, ModuleStartupStats> merged, Collection<ModuleStartupStats> report, int limit) {
+        for (var stats : report) {
+            var key = Arrays.asList(stats.module, stats.processName);
+            var sum = merged.get(key);
+            if (sum == null) {
+                if (merged.size() >= limit) continue;
+                sum = new ModuleStartupStats();
+                sum.module = stats.module;
+                sum.processName = stats.processName;
+                merged.put(key, sum);
+            }
+            sum.launches += stats.launches;
+            sum.loadNanos += stats.loadNanos;
+            sum.initNanos += stats.initNanos;
+            sum.packageLoadedNanos += stats.packageLoadedNanos;
+        }
+    }
+
+    private static void mergeHookStats(Map<List<String>, HookStats> merged, Collection<HookStats> report, int limit) {
+        for (var stats : report) {
+            var key = Arrays.asList(stats.member, stats.module, stats.callback);
+            var sum = merged.get(key);
+            if (sum == null) {
+                if (merged.size() >= limit) continue;
+                sum = new HookStats();
+                sum.member = stats.member;
+                sum.module = stats.module;
+                sum.callback = stats.callback;
+                sum.histogram = new long[stats.histogram.length];
+                merged.put(key, sum);
+            }
+            sum.calls += stats.calls;
+            sum.beforeNanos += stats.beforeNanos;
+            sum.afterNanos += stats.afterNanos;
+            sum.originalNanos += stats.originalNanos;
+            for (int i = 0; i < Math.min(sum.histogram.length, stats.histogram.length); i++) {
+                sum.histogram[i] += stats.histogram[i];
+            }
+        }
+    }
+
+    // merges the launches of the same process by module
+    static List<ModuleStartupStats> getModuleStartupStats() {
+        var merged = new HashMap<List<String>, ModuleStartupStats>();
+        synchronized (retiredStartupStats) {
+            mergeStartupStats(merged, retiredStartupStats.values(), Integer.MAX_VALUE);
+        }
+        for (var report : startupStats.values()) {
+            mergeStartupStats(merged, report, Integer.MAX_VALUE);
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    // merges the reports of all processes by hooked member and callback
+    static List<HookStats> getHookStats() {
+        var merged = new HashMap<List<String>, HookStats>();
+        synchronized (retiredHookStats) {
+            mergeHookStats(merged, retiredHookStats.values(), Integer.MAX_VALUE);
+        }
+        for (var report : hookStats.values()) {
+            mergeHookStats(merged, report, Integer.MAX_VALUE);
+        }
+        return new ArrayList<>(merged.values());
+    }
+
     public boolean hasRegister(int uid, int pid) {
         return processes.containsKey(new Pair<>(uid, pid));
     }
@@ -7,14 +7,9 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
-import android.util.Log;
 
 import org.lsposed.lspd.models.Module;
 
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
 import io.github.libxposed.service.IXposedService;
 
 public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
@@ -23,7 +18,7 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
 
     private final String mPackageName;
 
-    Map<String, Set<IRemotePreferenceCallback>> callbacks = new ConcurrentHashMap<>();
+    private final RemotePreferenceDispatcher dispatcher = new RemotePreferenceDispatcher();
 
     LSPInjectedModuleService(String packageName) {
         mPackageName = packageName;
@@ -40,13 +35,7 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
         var userId = Binder.getCallingUid() / PER_USER_RANGE;
         bundle.putSerializable("map", ConfigManager.getInstance().getModulePrefs(mPackageName, userId, group));
         if (callback != null) {
-            var groupCallbacks = callbacks.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet());
-            groupCallbacks.add(callback);
-            try {
-                callback.asBinder().linkToDeath(() -> groupCallbacks.remove(callback), 0);
-            } catch (RemoteException e) {
-                Log.w(TAG, "requestRemotePreferences: ", e);
-            }
+            dispatcher.register(group, callback);
         }
         return bundle;
     }
@@ -77,15 +66,6 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
     }
 
     void onUpdateRemotePreferences(String group, Bundle diff) {
-        var groupCallbacks = callbacks.get(group);
-        if (groupCallbacks != null) {
-            for (var callback : groupCallbacks) {
-                try {
-                    callback.onUpdate(diff);
-                } catch (RemoteException e) {
-                    groupCallbacks.remove(callback);
-                }
-            }
-        }
+        dispatcher.dispatch(group, diff);
     }
 }
@@ -51,6 +51,10 @@ import androidx.annotation.NonNull;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.ILSPManagerService;
 import org.lsposed.lspd.models.Application;
+import org.lsposed.lspd.models.HookStats;
+import org.lsposed.lspd.models.InstalledApps;
+import org.lsposed.lspd.models.ModuleStartupStats;
+import org.lsposed.lspd.models.ReflectionCacheStats;
 import org.lsposed.lspd.models.UserInfo;
 import org.lsposed.lspd.util.Utils;
 
@@ -385,6 +389,11 @@ public class LSPManagerService extends ILSPManagerService.Stub {
         return PackageService.getInstalledPackagesFromAllUsers(flags, filterNoProcess);
     }
 
+    @Override
+    public InstalledApps getInstalledApps(long generation, int offset) throws RemoteException {
+        return PackageService.getInstalledApps(generation, offset);
+    }
+
     @Override
     public String[] enabledModules() {
         return ConfigManager.getInstance().enabledModules();
@@ -619,6 +628,44 @@ public class LSPManagerService extends ILSPManagerService.Stub {
         }
     }
 
+    @Override
+    public boolean isHookProfilerEnabled() {
+        return ConfigManager.getInstance().hookProfiler();
+    }
+
+    @Override
+    public void setHookProfilerEnabled(boolean enabled) {
+        ConfigManager.getInstance().setHookProfiler(enabled);
+        if (!enabled) {
+            LSPApplicationService.clearHookStats();
+        }
+    }
+
+    @Override
+    public List<HookStats> getHookStats() {
+        return LSPApplicationService.getHookStats();
+    }
+
+    @Override
+    public List<ModuleStartupStats> getModuleStartupStats() {
+        return LSPApplicationService.getModuleStartupStats();
+    }
+
+    @Override
+    public ReflectionCacheStats getReflectionCacheStats() {
+        return LSPApplicationService.getReflectionCacheStats();
+    }
+
+    @Override
+    public boolean isModuleAotEnabled() {
+        return ConfigManager.getInstance().moduleAot();
+    }
+
+    @Override
+    public void setModuleAotEnabled(boolean enabled) {
+        ConfigManager.getInstance().setModuleAot(enabled);
+    }
+
     @Override
     public boolean performDexOptMode(String packageName) throws RemoteException {
         return PackageService.performDexOptMode(packageName);
@@ -66,7 +66,7 @@ public class LSPosedService extends ILSPosedService.Stub {
     private static boolean bootCompleted = false;
     private IBinder appThread = null;
 
-    private static boolean isModernModules(ApplicationInfo info) {
+    static boolean isModernModules(ApplicationInfo info) {
         String[] apks;
         if (info.splitSourceDirs != null) {
             apks = Arrays.copyOf(info.splitSourceDirs, info.splitSourceDirs.length + 1);
@@ -124,6 +124,8 @@ public class LSPosedService extends ILSPosedService.Stub {
         Uri uri = intent.getData();
         var module = ConfigManager.getInstance().getModule(uid);
         String moduleName = (uri != null) ? uri.getSchemeSpecificPart() : (module != null) ? module.packageName : null;
+        // before any scope is recomputed for the change
+        if (moduleName != null) PackageService.onPackageChanged(moduleName);
 
         ApplicationInfo applicationInfo = null;
         if (moduleName != null) {
@@ -167,7 +169,7 @@ public class LSPosedService extends ILSPosedService.Stub {
                     isXposedModule = ConfigManager.getInstance().updateModuleApkPath(moduleName, ConfigManager.getInstance().getModuleApkPath(applicationInfo), false);
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will auto update obsolete scope from database
-                    ConfigManager.getInstance().updateAppCache();
+                    ConfigManager.getInstance().updateAppCache(moduleName, uid);
                 }
                 broadcastAndShowNotification(moduleName, userId, intent, isXposedModule);
             }
@@ -177,10 +179,10 @@ public class LSPosedService extends ILSPosedService.Stub {
                 broadcastAndShowNotification(moduleName, userId, intent, isXposedModule);
                 if (isXposedModule) {
                     // it will auto remove obsolete app and scope from database
-                    ConfigManager.getInstance().updateCache();
+                    ConfigManager.getInstance().updateModuleCache(moduleName);
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will auto remove obsolete scope from database
-                    ConfigManager.getInstance().updateAppCache();
+                    ConfigManager.getInstance().updateAppCache(moduleName, uid);
                 }
             }
         }
@@ -216,6 +218,7 @@ public class LSPosedService extends ILSPosedService.Stub {
         if (intent == null) return;
         int uid = intent.getIntExtra(EXTRA_USER_HANDLE, AID_NOBODY);
         if (uid == AID_NOBODY || uid <= 0) return;
+        if (ACTION_USER_REMOVED.equals(intent.getAction())) PackageService.onUserRemoved(uid);
         LSPManagerService.broadcastIntent(intent);
     }
 
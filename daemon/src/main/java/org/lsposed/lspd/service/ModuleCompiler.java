@@ -0,0 +1,275 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.service;
+
+import static org.lsposed.lspd.service.ServiceManager.TAG;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SELinux;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import org.lsposed.lspd.models.PreLoadedApk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compiles the dexes served to hooked processes ahead of time. The dexes are written to a jar
+ * with the oat files of each supported instruction set next to it, so ART runs module code
+ * compiled when the jar is loaded by path instead of from memory.
+ */
+public class ModuleCompiler {
+    private static final String JAR_NAME = "base.jar";
+    private static final String CONTEXT = "u:object_r:magisk_file:s0";
+    private static final long DEX2OAT_TIMEOUT_MINUTES = 10;
+
+    private static final Handler handler;
+
+    static {
+        var thread = new HandlerThread("module-compiler");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    private final Path oatPath;
+    // module file -> digest of its dexes, which names the directory of the compiled jar
+    private final Map<PreLoadedApk, String> digests = Collections.synchronizedMap(new WeakHashMap<>());
+    // module file -> its compiled jar, kept apart as the files are parceled by binder threads
+    private final Map<PreLoadedApk, String> compiledDexPaths = Collections.synchronizedMap(new WeakHashMap<>());
+
+    ModuleCompiler(Path oatPath) {
+        this.oatPath = oatPath;
+    }
+
+    // the compiled jar of the module file, null until it is ready
+    String getCompiledDexPath(PreLoadedApk file) {
+        return compiledDexPaths.get(file);
+    }
+
+    // finds the compiled jar of the module file, compiling it in the background if there is none yet
+    void submit(PreLoadedApk file) {
+        String digest;
+        try {
+            digest = digest(file.preLoadedDexes);
+        } catch (ErrnoException | NoSuchAlgorithmException | IllegalStateException e) {
+            Log.w(TAG, "cannot digest module dexes", e);
+            return;
+        }
+        digests.put(file, digest);
+        var target = oatPath.resolve(digest);
+        if (Files.exists(target)) {
+            compiledDexPaths.put(file, target.resolve(JAR_NAME).toString());
+            return;
+        }
+        handler.post(() -> {
+            if (!digest.equals(digests.get(file))) return;
+            if (Files.exists(target) || compile(file.preLoadedDexes, target)) {
+                compiledDexPaths.put(file, target.resolve(JAR_NAME).toString());
+            }
+        });
+    }
+
+    // removes compiled jars no longer used by any module file
+    void prune() {
+        handler.post(() -> {
+            HashSet<String> used;
+            synchronized (digests) {
+                used = new HashSet<>(digests.values());
+            }
+            try (var files = Files.list(oatPath)) {
+                for (var path : files.collect(Collectors.toList())) {
+                    if (!used.contains(path.getFileName().toString())) {
+                        ConfigFileManager.deleteFolderIfExists(path);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "prune compiled modules", e);
+            }
+        });
+    }
+
+    void clear() {
+        digests.clear();
+        compiledDexPaths.clear();
+        handler.post(() -> {
+            try {
+                ConfigFileManager.deleteFolderIfExists(oatPath);
+            } catch (IOException e) {
+                Log.w(TAG, "clear compiled modules", e);
+            }
+        });
+    }
+
+    private static String digest(List<SharedMemory> dexes) throws ErrnoException, NoSuchAlgorithmException {
+        var md = MessageDigest.getInstance("SHA-256");
+        for (var dex : dexes) {
+            var buffer = dex.mapReadOnly();
+            try {
+                md.update(buffer);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+        }
+        var sb = new StringBuilder();
+        var bytes = md.digest();
+        for (int i = 0; i < 16; i++) {
+            sb.append(String.format("%02x", bytes[i]));
+        }
+        return sb.toString();
+    }
+
+    private boolean compile(List<SharedMemory> dexes, Path target) {
+        var tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            ConfigFileManager.deleteFolderIfExists(tmp);
+            Files.createDirectories(tmp);
+            var jar = tmp.resolve(JAR_NAME);
+            writeJar(dexes, jar);
+            // one instruction set is enough to be useful, the other bitness falls back to the jit
+            boolean compiled = dex2oat(false, jar, target);
+            compiled |= dex2oat(true, jar, target);
+            if (!compiled) return false;
+            var paths = new ArrayList<Path>();
+            try (var files = Files.walk(tmp)) {
+                files.forEach(paths::add);
+            }
+            for (var path : paths) {
+                Os.chmod(path.toString(), Files.isDirectory(path) ? 0711 : 0644);
+                SELinux.setFileContext(path.toString(), CONTEXT);
+            }
+            Os.chmod(oatPath.toString(), 0711);
+            SELinux.setFileContext(oatPath.toString(), CONTEXT);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            Log.d(TAG, "compiled module dexes to " + target);
+            return true;
+        } catch (IOException | ErrnoException | IllegalStateException e) {
+            Log.e(TAG, "failed to compile " + target, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            try {
+                ConfigFileManager.deleteFolderIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void writeJar(List<SharedMemory> dexes, Path jar) throws IOException, ErrnoException {
+        try (var zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < dexes.size(); i++) {
+                var buffer = dexes.get(i).mapReadOnly();
+                try {
+                    var bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    var crc = new CRC32();
+                    crc.update(bytes);
+                    // stored, so ART can map the dexes from the jar
+                    var entry = new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(bytes.length);
+                    entry.setCompressedSize(bytes.length);
+                    entry.setCrc(crc.getValue());
+                    zip.putNextEntry(entry);
+                    zip.write(bytes);
+                    zip.closeEntry();
+                } finally {
+                    SharedMemory.unmap(buffer);
+                }
+            }
+        }
+    }
+
+    private static String instructionSet(String abi) {
+        switch (abi) {
+            case "arm64-v8a":
+                return "arm64";
+            case "armeabi-v7a":
+            case "armeabi":
+                return "arm";
+            default:
+                // x86, x86_64 and riscv64
+                return abi;
+        }
+    }
+
+    private static boolean dex2oat(boolean is64, Path jar, Path target) throws IOException, InterruptedException {
+        // the dex2oat binaries are only managed since Q
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return false;
+        var abis = is64 ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
+        var service = ServiceManager.getDex2OatService();
+        if (abis.length == 0 || service == null) return false;
+        var dex2oat = service.getDex2oatPath(is64);
+        if (dex2oat == null) return false;
+        var isa = instructionSet(abis[0]);
+        var oatDir = jar.resolveSibling("oat").resolve(isa);
+        Files.createDirectories(oatDir);
+        var log = jar.resolveSibling("dex2oat-" + isa + ".log");
+        // locations are where the files end up, ART checks them when opening the oat file
+        var process = new ProcessBuilder(dex2oat,
+                "--dex-file=" + jar,
+                "--dex-location=" + target.resolve(JAR_NAME),
+                "--oat-file=" + oatDir.resolve("base.odex"),
+                "--oat-location=" + target.resolve("oat").resolve(isa).resolve("base.odex"),
+                "--instruction-set=" + isa,
+                "--compiler-filter=speed",
+                // keep hooked methods from being inlined into module code
+                "--inline-max-code-units=0")
+                .redirectErrorStream(true)
+                // to a file rather than a pipe, which would have to be drained before the timeout applies
+                .redirectOutput(log.toFile())
+                .start();
+        try {
+            if (!process.waitFor(DEX2OAT_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                Log.w(TAG, "dex2oat timed out for " + isa);
+                return false;
+            }
+            if (process.exitValue() != 0) {
+                Log.w(TAG, "dex2oat failed for " + isa + ": " + new String(Files.readAllBytes(log)));
+                return false;
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+}
@@ -42,6 +42,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.util.Pair;
@@ -50,6 +51,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.lsposed.lspd.models.Application;
+import org.lsposed.lspd.models.InstalledApps;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -57,11 +59,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import rikka.parcelablelist.ParcelableListSlice;
 
@@ -76,6 +82,21 @@ public class PackageService {
 
     private static IPackageManager pm = null;
     private static IBinder binder = null;
+    private static final ProcessIndex processIndex = new ProcessIndex(ConfigFileManager.processIndexPath);
+
+    private static final int APPS_PAGE_SIZE = 200;
+    private static final int MAX_APP_LISTS = 4;
+    private static final long APP_LIST_TTL_MS = 60 * 1000;
+    private static final AtomicLong appListGeneration = new AtomicLong();
+    // recent app lists by generation, for callers still paging through them, dropped after the last page
+    private static final Map<Long, AppList> appLists = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Entry<Long, AppList> eldest) {
+            return size() > MAX_APP_LISTS;
+        }
+    };
+    // package name, whether its current version is a modern module; trimmed to the installed packages
+    private static final Map<String, ModernModuleCheck> modernModules = new ConcurrentHashMap<>();
 
     static boolean isAlive() {
         var pm = getPackageManager();
@@ -164,19 +185,141 @@ public class PackageService {
                     .collect(Collectors.toList()));
         }
         if (filterNoProcess) {
-            return new ParcelableListSlice<>(res.parallelStream().filter(packageInfo -> {
-                try {
-                    PackageInfo pkgInfo = getPackageInfoWithComponents(packageInfo.packageName, MATCH_ALL_FLAGS, packageInfo.applicationInfo.uid / PER_USER_RANGE);
-                    return !fetchProcesses(pkgInfo).isEmpty();
-                } catch (RemoteException e) {
-                    Log.w(TAG, "filter failed", e);
-                    return true;
-                }
-            }).collect(Collectors.toList()));
+            var filtered = res.parallelStream().filter(PackageService::hasProcess).collect(Collectors.toList());
+            processIndex.saveIfChanged();
+            return new ParcelableListSlice<>(filtered);
         }
         return new ParcelableListSlice<>(res);
     }
 
+    private static boolean hasProcess(PackageInfo packageInfo) {
+        var userId = packageInfo.applicationInfo.uid / PER_USER_RANGE;
+        var entry = processIndex.get(packageInfo, userId);
+        if (entry != null) return !entry.processes.isEmpty();
+        try {
+            PackageInfo pkgInfo = getPackageInfoWithComponents(packageInfo.packageName, MATCH_ALL_FLAGS, userId);
+            var processes = fetchProcesses(pkgInfo);
+            if (pkgInfo != null) processIndex.put(pkgInfo, userId, processes);
+            return !processes.isEmpty();
+        } catch (RemoteException e) {
+            Log.w(TAG, "filter failed", e);
+            return true;
+        }
+    }
+
+    private static boolean isModule(PackageInfo packageInfo) {
+        var app = packageInfo.applicationInfo;
+        if (app.metaData != null && app.metaData.containsKey("xposedminversion")) return true;
+        if (app.sourceDir == null) return false;
+        // opening the apks is slow, each version of a package is only checked once
+        var check = modernModules.get(packageInfo.packageName);
+        if (check == null || !check.sourceDir.equals(app.sourceDir) || check.lastUpdateTime != packageInfo.lastUpdateTime) {
+            check = new ModernModuleCheck(app.sourceDir, packageInfo.lastUpdateTime, LSPosedService.isModernModules(app));
+            modernModules.put(packageInfo.packageName, check);
+        }
+        return check.modern;
+    }
+
+    private static final class ModernModuleCheck {
+        final String sourceDir;
+        final long lastUpdateTime;
+        final boolean modern;
+
+        ModernModuleCheck(String sourceDir, long lastUpdateTime, boolean modern) {
+            this.sourceDir = sourceDir;
+            this.lastUpdateTime = lastUpdateTime;
+            this.modern = modern;
+        }
+    }
+
+    // Only for manager
+    @SuppressWarnings("deprecation")
+    public static InstalledApps getInstalledApps(long generation, int offset) throws RemoteException {
+        AppList list;
+        synchronized (appLists) {
+            var now = SystemClock.elapsedRealtime();
+            appLists.values().removeIf(l -> now - l.createdTime > APP_LIST_TTL_MS);
+            list = offset == 0 ? null : appLists.get(generation);
+        }
+        if (list == null) {
+            list = new AppList(getInstalledPackagesFromAllUsers(PackageManager.GET_META_DATA | PackageManager.MATCH_UNINSTALLED_PACKAGES, false).getList());
+            processIndex.saveIfChanged();
+            offset = 0;
+            synchronized (appLists) {
+                appLists.put(list.generation, list);
+            }
+        }
+        var size = list.packages.size();
+        offset = Math.min(offset, size);
+        var end = Math.min(offset + APPS_PAGE_SIZE, size);
+        var rows = end - offset;
+        var page = new InstalledApps();
+        page.generation = list.generation;
+        page.offset = offset;
+        page.next = end == size ? -1 : end;
+        if (page.next == -1) {
+            synchronized (appLists) {
+                appLists.remove(list.generation);
+            }
+        }
+        page.packageNames = new String[rows];
+        page.uids = new int[rows];
+        page.flags = new int[rows];
+        page.firstInstallTimes = new long[rows];
+        page.lastUpdateTimes = new long[rows];
+        page.versionNames = new String[rows];
+        page.versionCodes = new long[rows];
+        page.modules = new boolean[rows];
+        page.processes = new boolean[rows];
+        page.applicationInfos = new ApplicationInfo[rows];
+        for (int i = 0; i < rows; i++) {
+            var info = list.packages.get(offset + i);
+            page.packageNames[i] = info.packageName;
+            page.uids[i] = info.applicationInfo.uid;
+            page.flags[i] = info.applicationInfo.flags;
+            page.firstInstallTimes[i] = info.firstInstallTime;
+            page.lastUpdateTimes[i] = info.lastUpdateTime;
+            page.versionNames[i] = info.versionName;
+            page.versionCodes[i] = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+            page.modules[i] = list.modules[offset + i];
+            page.processes[i] = list.processes[offset + i];
+            if (list.firstOfPackage[offset + i]) {
+                var app = new ApplicationInfo(info.applicationInfo);
+                app.metaData = null;
+                page.applicationInfos[i] = app;
+            }
+        }
+        return page;
+    }
+
+    // a snapshot of the installed packages, so every page of a list is cut from the same one
+    private static final class AppList {
+        final long generation = appListGeneration.incrementAndGet();
+        final long createdTime = SystemClock.elapsedRealtime();
+        final List<PackageInfo> packages;
+        final boolean[] modules;
+        final boolean[] processes;
+        final boolean[] firstOfPackage;
+
+        AppList(List<PackageInfo> packages) {
+            this.packages = packages;
+            var size = packages.size();
+            modules = new boolean[size];
+            processes = new boolean[size];
+            firstOfPackage = new boolean[size];
+            IntStream.range(0, size).parallel().forEach(i -> {
+                modules[i] = isModule(packages.get(i));
+                processes[i] = hasProcess(packages.get(i));
+            });
+            var seen = new HashSet<String>();
+            for (int i = 0; i < size; i++) {
+                firstOfPackage[i] = seen.add(packages.get(i).packageName);
+            }
+            // forget uninstalled packages
+            modernModules.keySet().retainAll(seen);
+        }
+    }
+
     private static Set<String> fetchProcesses(PackageInfo pkgInfo) {
         HashSet<String> processNames = new HashSet<>();
         if (pkgInfo == null) return processNames;
@@ -196,12 +339,43 @@ public class PackageService {
     }
 
     public static Pair<Set<String>, Integer> fetchProcessesWithUid(Application app) throws RemoteException {
+        var entry = processIndex.get(app.packageName, app.userId);
+        if (entry != null) return new Pair<>(entry.processes, entry.uid);
         IPackageManager pm = getPackageManager();
         if (pm == null) return new Pair<>(Collections.emptySet(), -1);
         PackageInfo pkgInfo = getPackageInfoWithComponents(app.packageName, MATCH_ALL_FLAGS, app.userId);
         if (pkgInfo == null || pkgInfo.applicationInfo == null)
             return new Pair<>(Collections.emptySet(), -1);
-        return new Pair<>(fetchProcesses(pkgInfo), pkgInfo.applicationInfo.uid);
+        entry = processIndex.put(pkgInfo, app.userId, fetchProcesses(pkgInfo));
+        return new Pair<>(entry.processes, entry.uid);
+    }
+
+    // drop the indexed processes that are out of date, with one call per user
+    static void validateProcessIndex() throws RemoteException {
+        IPackageManager pm = getPackageManager();
+        if (pm == null) return;
+        for (var user : UserService.getUsers()) {
+            ParceledListSlice<PackageInfo> infos;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                infos = pm.getInstalledPackages((long) MATCH_ALL_FLAGS, user.id);
+            } else {
+                infos = pm.getInstalledPackages(MATCH_ALL_FLAGS, user.id);
+            }
+            processIndex.validate(user.id, infos.getList());
+        }
+    }
+
+    static void saveProcessIndex() {
+        processIndex.saveIfChanged();
+    }
+
+    static void onPackageChanged(String packageName) {
+        processIndex.invalidate(packageName);
+    }
+
+    static void onUserRemoved(int userId) {
+        processIndex.removeUser(userId);
+        processIndex.saveIfChanged();
     }
 
     public static boolean isPackageAvailable(String packageName, int userId, boolean ignoreHidden) throws RemoteException {
@@ -0,0 +1,205 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.service;
+
+import static org.lsposed.lspd.service.ServiceManager.TAG;
+
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.util.Log;
+import android.util.Pair;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The process names and uid of installed packages, so they are not fetched component by
+ * component from the package manager every time. An entry is only valid for the version and
+ * update time it was built from, is dropped when its package changes, and is kept on disk
+ * across daemon restarts.
+ */
+public class ProcessIndex {
+    private static final int MAGIC = 0x4c535049; // LSPI
+    private static final int VERSION = 1;
+
+    static final class Entry {
+        final long lastUpdateTime;
+        final long versionCode;
+        final int uid;
+        final Set<String> processes;
+
+        Entry(long lastUpdateTime, long versionCode, int uid, Set<String> processes) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+            this.uid = uid;
+            this.processes = processes;
+        }
+
+        boolean matches(PackageInfo info) {
+            return info.lastUpdateTime == lastUpdateTime && versionCode(info) == versionCode;
+        }
+    }
+
+    private final Path path;
+    // package name, user id
+    private final Map<Pair<String, Integer>, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    ProcessIndex(Path path) {
+        this.path = path;
+        load();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long versionCode(PackageInfo info) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+    }
+
+    // the entry if it was built from this very version of the package
+    @Nullable
+    Entry get(PackageInfo info, int userId) {
+        var entry = entries.get(new Pair<>(info.packageName, userId));
+        return entry != null && entry.matches(info) ? entry : null;
+    }
+
+    // the entry as of the last package broadcast or validation
+    @Nullable
+    Entry get(String packageName, int userId) {
+        return entries.get(new Pair<>(packageName, userId));
+    }
+
+    Entry put(PackageInfo info, int userId, Set<String> processes) {
+        var entry = new Entry(info.lastUpdateTime, versionCode(info), info.applicationInfo.uid,
+                Collections.unmodifiableSet(new HashSet<>(processes)));
+        entries.put(new Pair<>(info.packageName, userId), entry);
+        dirty = true;
+        return entry;
+    }
+
+    void invalidate(String packageName) {
+        if (entries.keySet().removeIf(key -> key.first.equals(packageName))) dirty = true;
+    }
+
+    void removeUser(int userId) {
+        if (entries.keySet().removeIf(key -> key.second == userId)) dirty = true;
+    }
+
+    // drop the entries of the user that no longer match what is installed
+    void validate(int userId, Collection<PackageInfo> installed) {
+        var current = new HashSet<Pair<String, Integer>>();
+        for (var info : installed) {
+            var key = new Pair<>(info.packageName, userId);
+            var entry = entries.get(key);
+            if (entry == null) continue;
+            if (entry.matches(info)) {
+                current.add(key);
+            } else {
+                entries.remove(key, entry);
+                dirty = true;
+            }
+        }
+        if (entries.keySet().removeIf(key -> key.second == userId && !current.contains(key))) {
+            dirty = true;
+        }
+    }
+
+    /*
+     * Layout of the index file:
+     *   magic, version, entry count, followed by
+     *   package name, user id, last update time, version code, uid, process names of each entry
+     */
+    private void load() {
+        if (!Files.isRegularFile(path)) return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            var size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                var packageName = in.readUTF();
+                var userId = in.readInt();
+                var lastUpdateTime = in.readLong();
+                var versionCode = in.readLong();
+                var uid = in.readInt();
+                var processes = new HashSet<String>();
+                var count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    processes.add(in.readUTF());
+                }
+                entries.put(new Pair<>(packageName, userId),
+                        new Entry(lastUpdateTime, versionCode, uid, Collections.unmodifiableSet(processes)));
+            }
+            Log.d(TAG, "Loaded " + size + " packages from process index");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Can not read process index " + path, e);
+            entries.clear();
+        }
+    }
+
+    synchronized void saveIfChanged() {
+        if (!dirty) return;
+        dirty = false;
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                var snapshot = new ArrayList<>(entries.entrySet());
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (var e : snapshot) {
+                    var entry = e.getValue();
+                    out.writeUTF(e.getKey().first);
+                    out.writeInt(e.getKey().second);
+                    out.writeLong(entry.lastUpdateTime);
+                    out.writeLong(entry.versionCode);
+                    out.writeInt(entry.uid);
+                    out.writeInt(entry.processes.size());
+                    for (var process : entry.processes) {
+                        out.writeUTF(process);
+                    }
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "Can not write process index " + path, e);
+            dirty = true;
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.service;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fans out remote preference changes of one module to its subscribers. Diffs are merged per
+ * subscriber for a short while and delivered from a dedicated thread, so a slow or frozen
+ * process never blocks the module that changed its preferences.
+ */
+public class RemotePreferenceDispatcher {
+    private static final String TAG = "LSPosedRemotePreference";
+
+    private static final long COALESCE_DELAY_MS = 50;
+    private static final long RETRY_DELAY_MS = 1000;
+    // a subscriber that could not take an update for this long is dropped
+    private static final long MAX_BACKLOG_MS = 30 * 1000;
+    private static final int MAX_PENDING_KEYS = 4096;
+
+    private static final Handler handler;
+
+    private static final AtomicInteger subscriberCount = new AtomicInteger();
+    private static final AtomicInteger pendingKeys = new AtomicInteger();
+    private static final LongAdder deliveredUpdates = new LongAdder();
+    private static final LongAdder droppedSubscribers = new LongAdder();
+    private static final LongAdder latencyMs = new LongAdder();
+    private static final AtomicLong maxLatencyMs = new AtomicLong();
+
+    static {
+        var thread = new HandlerThread("remote-prefs");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // group, callback binder, subscriber
+    private final Map<String, Map<IBinder, Subscriber>> groups = new ConcurrentHashMap<>();
+
+    void register(String group, IRemotePreferenceCallback callback) {
+        var subscribers = groups.computeIfAbsent(group, k -> new ConcurrentHashMap<>());
+        var binder = callback.asBinder();
+        var subscriber = new Subscriber(subscribers, binder, callback);
+        if (subscribers.putIfAbsent(binder, subscriber) != null) return;
+        subscriberCount.incrementAndGet();
+        try {
+            binder.linkToDeath(subscriber::drop, 0);
+        } catch (RemoteException e) {
+            Log.w(TAG, "register: ", e);
+            subscriber.drop();
+        }
+    }
+
+    void dispatch(String group, Bundle diff) {
+        var subscribers = groups.get(group);
+        if (subscribers == null) return;
+        Set<?> deletes = diff.containsKey("delete") ? (Set<?>) diff.getSerializable("delete") : null;
+        Map<?, ?> puts = diff.containsKey("put") ? (Map<?, ?>) diff.getSerializable("put") : null;
+        for (var subscriber : subscribers.values()) {
+            subscriber.enqueue(deletes, puts);
+        }
+    }
+
+    static String dump() {
+        var count = deliveredUpdates.sum();
+        return String.format(Locale.ROOT,
+                "subscribers: %d\npending keys: %d\ndelivered: %d\ndropped: %d\navg latency: %dms\nmax latency: %dms\n",
+                subscriberCount.get(), pendingKeys.get(), count, droppedSubscribers.sum(),
+                count == 0 ? 0 : latencyMs.sum() / count, maxLatencyMs.get());
+    }
+
+    private static final class Subscriber {
+        private final Map<IBinder, Subscriber> owner;
+        private final IBinder binder;
+        private final IRemotePreferenceCallback callback;
+
+        // merged diff not yet delivered
+        private final HashMap<String, Object> puts = new HashMap<>();
+        private final HashSet<String> deletes = new HashSet<>();
+        // when the oldest undelivered change arrived, 0 if there is none
+        private long since = 0;
+        private boolean scheduled = false;
+        private boolean dropped = false;
+
+        Subscriber(Map<IBinder, Subscriber> owner, IBinder binder, IRemotePreferenceCallback callback) {
+            this.owner = owner;
+            this.binder = binder;
+            this.callback = callback;
+        }
+
+        void enqueue(Set<?> newDeletes, Map<?, ?> newPuts) {
+            boolean backlogged;
+            synchronized (this) {
+                if (dropped) return;
+                int before = puts.size() + deletes.size();
+                if (newDeletes != null) {
+                    for (var key : newDeletes) {
+                        puts.remove((String) key);
+                        deletes.add((String) key);
+                    }
+                }
+                if (newPuts != null) {
+                    for (var entry : newPuts.entrySet()) {
+                        deletes.remove((String) entry.getKey());
+                        puts.put((String) entry.getKey(), entry.getValue());
+                    }
+                }
+                int after = puts.size() + deletes.size();
+                pendingKeys.addAndGet(after - before);
+                if (since == 0) since = SystemClock.elapsedRealtime();
+                backlogged = after > MAX_PENDING_KEYS;
+                if (!backlogged && !scheduled) {
+                    scheduled = true;
+                    handler.postDelayed(this::flush, COALESCE_DELAY_MS);
+                }
+            }
+            if (backlogged) {
+                Log.w(TAG, "dropping backlogged subscriber " + binder);
+                drop();
+            }
+        }
+
+        private void flush() {
+            var bundle = new Bundle();
+            HashMap<String, Object> sentPuts;
+            HashSet<String> sentDeletes;
+            long sentSince;
+            synchronized (this) {
+                scheduled = false;
+                if (dropped || since == 0) return;
+                sentPuts = new HashMap<>(puts);
+                sentDeletes = new HashSet<>(deletes);
+                sentSince = since;
+                pendingKeys.addAndGet(-(puts.size() + deletes.size()));
+                puts.clear();
+                deletes.clear();
+                since = 0;
+            }
+            if (!sentDeletes.isEmpty()) bundle.putSerializable("delete", sentDeletes);
+            if (!sentPuts.isEmpty()) bundle.putSerializable("put", sentPuts);
+            try {
+                // oneway, only waits for the transaction to be queued
+                callback.onUpdate(bundle);
+                var latency = SystemClock.elapsedRealtime() - sentSince;
+                deliveredUpdates.increment();
+                latencyMs.add(latency);
+                maxLatencyMs.accumulateAndGet(latency, Math::max);
+            } catch (DeadObjectException e) {
+                drop();
+            } catch (RemoteException e) {
+                // most likely the async buffer of a frozen process is full
+                if (SystemClock.elapsedRealtime() - sentSince > MAX_BACKLOG_MS) {
+                    Log.w(TAG, "dropping backlogged subscriber " + binder, e);
+                    drop();
+                } else {
+                    requeue(sentDeletes, sentPuts, sentSince);
+                }
+            }
+        }
+
+        // put back an undelivered diff underneath the changes that came in meanwhile
+        private synchronized void requeue(Set<String> oldDeletes, Map<String, Object> oldPuts, long oldSince) {
+            if (dropped) return;
+            int before = puts.size() + deletes.size();
+            for (var key : oldDeletes) {
+                if (!puts.containsKey(key)) deletes.add(key);
+            }
+            for (var entry : oldPuts.entrySet()) {
+                if (!deletes.contains(entry.getKey()) && !puts.containsKey(entry.getKey()))
+                    puts.put(entry.getKey(), entry.getValue());
+            }
+            pendingKeys.addAndGet(puts.size() + deletes.size() - before);
+            since = oldSince;
+            if (!scheduled) {
+                scheduled = true;
+                handler.postDelayed(this::flush, RETRY_DELAY_MS);
+            }
+        }
+
+        void drop() {
+            synchronized (this) {
+                if (dropped) return;
+                dropped = true;
+                pendingKeys.addAndGet(-(puts.size() + deletes.size()));
+                puts.clear();
+                deletes.clear();
+            }
+            owner.remove(binder, this);
+            subscriberCount.decrementAndGet();
+            droppedSubscribers.increment();
+        }
+    }
+}
@@ -4,32 +4,28 @@
 #include <unistd.h>
 #include <string>
 #include <android/log.h>
+#include <algorithm>
 #include <array>
+#include <atomic>
 #include <cinttypes>
 #include <chrono>
+#include <memory>
 #include <thread>
-#include <functional>
+#include <mutex>
+#include <unordered_map>
 #include <sys/system_properties.h>
+#include <zlib.h>
 
 using namespace std::string_view_literals;
 using namespace std::chrono_literals;
 
 constexpr size_t kMaxLogSize = 4 * 1024 * 1024;
 constexpr size_t kLogBufferSize = 64 * 1024;
+constexpr size_t kLogBlockSize = 64 * 1024;
+constexpr auto kLogBlockFlushInterval = 1s;
+constexpr auto kLogFlushCheckInterval = 100ms;
 
 namespace {
-    constexpr std::array<char, ANDROID_LOG_SILENT + 1> kLogChar = {
-            /*ANDROID_LOG_UNKNOWN*/'?',
-            /*ANDROID_LOG_DEFAULT*/ '?',
-            /*ANDROID_LOG_VERBOSE*/ 'V',
-            /*ANDROID_LOG_DEBUG*/ 'D',
-            /*ANDROID_LOG_INFO*/'I',
-            /*ANDROID_LOG_WARN*/'W',
-            /*ANDROID_LOG_ERROR*/ 'E',
-            /*ANDROID_LOG_FATAL*/ 'F',
-            /*ANDROID_LOG_SILENT*/ 'S',
-    };
-
     size_t ParseUint(const char *s) {
         if (s[0] == '\0') return -1;
 
@@ -84,14 +80,131 @@ namespace {
 
 }  // namespace
 
-class UniqueFile : public std::unique_ptr<FILE, std::function<void(FILE *)>> {
-    inline static deleter_type deleter = [](auto f) { f && f != stdout && fclose(f); };
+// A log is a header followed by deflated blocks, each prefixed with its raw and compressed size.
+// A block is a sequence of records, tags are interned per block so every block decodes on its
+// own. Keep in sync with org.lsposed.lspd.util.LogDecoder.
+class LogFile {
 public:
-    explicit UniqueFile(FILE *f) : std::unique_ptr<FILE, std::function<void(FILE *)>>(f, deleter) {}
+    explicit LogFile(int fd) : fd_(fd) {
+        constexpr std::array<char, 8> kHeader = {'L', 'S', 'P', 'L', kVersion, 0, 0, 0};
+        WriteFully(kHeader.data(), kHeader.size());
+    }
+
+    LogFile(const LogFile &) = delete;
+
+    LogFile &operator=(const LogFile &) = delete;
+
+    ~LogFile() {
+        std::lock_guard lk(mutex_);
+        FlushLocked();
+        if (fd_ >= 0) close(fd_);
+    }
+
+    // returns the number of bytes written to the file, which is 0 until a block is flushed
+    size_t Write(const AndroidLogEntry &entry) {
+        std::lock_guard lk(mutex_);
+        std::string_view tag(entry.tag, entry.tagLen);
+        auto [tag_id, inserted] = tags_.try_emplace(std::string(tag), tags_.size());
+        if (inserted) {
+            block_.push_back(kRecordTag);
+            PutVarint(tag.size());
+            block_.append(tag);
+        }
+        auto message_len = entry.messageLen;
+        if (message_len >= 1 && entry.message[message_len - 1] == '\n') {
+            --message_len;
+        }
+        int64_t time = static_cast<int64_t>(entry.tv_sec) * 1000 + entry.tv_nsec / MS_PER_NSEC;
+        int64_t delta = time - last_time_;
+        last_time_ = time;
+        block_.push_back(kRecordEntry);
+        PutVarint(tag_id->second);
+        block_.push_back(static_cast<char>(entry.priority));
+        PutVarint((static_cast<uint64_t>(delta) << 1) ^ static_cast<uint64_t>(delta >> 63));
+        PutVarint(static_cast<uint32_t>(entry.uid));
+        PutVarint(static_cast<uint32_t>(entry.pid));
+        PutVarint(static_cast<uint32_t>(entry.tid));
+        PutVarint(message_len);
+        block_.append(entry.message, message_len);
+        if (block_start_ == std::chrono::steady_clock::time_point{}) {
+            block_start_ = std::chrono::steady_clock::now();
+        }
+        return block_.size() >= kLogBlockSize ? FlushLocked() : 0;
+    }
+
+    // text is written as is and flushed right away, it is rare and expected to be seen
+    size_t Write(std::string_view text) {
+        std::lock_guard lk(mutex_);
+        block_.push_back(kRecordText);
+        PutVarint(text.size());
+        block_.append(text);
+        return FlushLocked();
+    }
+
+    // flushes a block that has waited long enough, so followers of the log are not kept waiting
+    size_t FlushIfStale(std::chrono::steady_clock::time_point now) {
+        std::lock_guard lk(mutex_);
+        if (block_.empty() || now - block_start_ < kLogBlockFlushInterval) return 0;
+        return FlushLocked();
+    }
+
+private:
+    static constexpr char kVersion = 1;
+    static constexpr char kRecordText = 0;
+    static constexpr char kRecordTag = 1;
+    static constexpr char kRecordEntry = 2;
+    static constexpr size_t kBlockHeaderSize = 8;
+
+    void PutVarint(uint64_t value) {
+        while (value >= 0x80) {
+            block_.push_back(static_cast<char>(value | 0x80));
+            value >>= 7;
+        }
+        block_.push_back(static_cast<char>(value));
+    }
+
+    static void PutLe32(char *out, uint32_t value) {
+        for (int i = 0; i < 4; ++i) out[i] = static_cast<char>(value >> (8 * i));
+    }
+
+    bool WriteFully(const char *data, size_t size) {
+        if (fd_ < 0) return true;
+        while (size > 0) {
+            auto written = TEMP_FAILURE_RETRY(write(fd_, data, size));
+            if (written <= 0) return false;
+            data += written;
+            size -= written;
+        }
+        return true;
+    }
 
-    UniqueFile(int fd, const char *mode) : UniqueFile(fd > 0 ? fdopen(fd, mode) : stdout) {};
+    size_t FlushLocked() {
+        if (block_.empty()) return 0;
+        uLongf compressed_size = compressBound(block_.size());
+        compressed_.resize(kBlockHeaderSize + compressed_size);
+        auto result = compress2(reinterpret_cast<Bytef *>(compressed_.data() + kBlockHeaderSize),
+                                &compressed_size, reinterpret_cast<const Bytef *>(block_.data()),
+                                block_.size(), Z_BEST_SPEED);
+        size_t size = kBlockHeaderSize + compressed_size;
+        PutLe32(compressed_.data(), block_.size());
+        PutLe32(compressed_.data() + 4, compressed_size);
+        block_.clear();
+        tags_.clear();
+        last_time_ = 0;
+        block_start_ = {};
+        // the whole block goes in one write, so a reader rarely sees half of it
+        // trigger overflow when failed to write, so that a new fd is generated
+        if (result != Z_OK || !WriteFully(compressed_.data(), size)) return kMaxLogSize;
+        return size;
+    }
 
-    UniqueFile() : UniqueFile(stdout) {};
+    int fd_;
+    std::mutex mutex_;
+    std::string block_;
+    std::string compressed_;
+    std::unordered_map<std::string, uint32_t> tags_;
+    int64_t last_time_ = 0;
+    std::chrono::steady_clock::time_point block_start_{};
 };
 
 class Logcat {
@@ -110,86 +223,72 @@ private:
 
     void ProcessBuffer(struct log_msg *buf);
 
-    static size_t PrintLogLine(const AndroidLogEntry &entry, FILE *out);
-
     void EnsureLogWatchDog();
 
+    void StartFlusher();
+
+    // the files as seen from other threads, which must not race with RefreshFd
+    std::pair<std::shared_ptr<LogFile>, std::shared_ptr<LogFile>> Files();
+
     JNIEnv *env_;
     jobject thiz_;
     jmethodID refresh_fd_method_;
 
-    UniqueFile modules_file_{};
+    // replaced by the reading thread only, under files_mutex_
+    std::mutex files_mutex_;
+
+    std::shared_ptr<LogFile> modules_file_ = std::make_shared<LogFile>(-1);
     size_t modules_file_part_ = 0;
-    size_t modules_print_count_ = 0;
+    std::atomic<size_t> modules_print_count_ = 0;
 
-    UniqueFile verbose_file_{};
+    std::shared_ptr<LogFile> verbose_file_ = std::make_shared<LogFile>(-1);
     size_t verbose_file_part_ = 0;
-    size_t verbose_print_count_ = 0;
+    std::atomic<size_t> verbose_print_count_ = 0;
 
     pid_t my_pid_ = getpid();
 
     bool verbose_ = true;
 };
 
-size_t Logcat::PrintLogLine(const AndroidLogEntry &entry, FILE *out) {
-    if (!out) return 0;
-    constexpr static size_t kMaxTimeBuff = 64;
-    struct tm tm{};
-    std::array<char, kMaxTimeBuff> time_buff{};
-
-    auto now = entry.tv_sec;
-    auto nsec = entry.tv_nsec;
-    auto message_len = entry.messageLen;
-    const auto *message = entry.message;
-    if (now < 0) {
-        nsec = NS_PER_SEC - nsec;
-    }
-    if (message_len >= 1 && message[message_len - 1] == '\n') {
-        --message_len;
-    }
-    localtime_r(&now, &tm);
-    strftime(time_buff.data(), time_buff.size(), "%Y-%m-%dT%H:%M:%S", &tm);
-    int len = fprintf(out, "[ %s.%03ld %8d:%6d:%6d %c/%-15.*s ] %.*s\n",
-                      time_buff.data(),
-                      nsec / MS_PER_NSEC,
-                      entry.uid, entry.pid, entry.tid,
-                      kLogChar[entry.priority], static_cast<int>(entry.tagLen),
-                      entry.tag, static_cast<int>(message_len), message);
-    fflush(out);
-    // trigger overflow when failed to generate a new fd
-    if (len <= 0) len = kMaxLogSize;
-    return static_cast<size_t>(len);
-}
-
 void Logcat::RefreshFd(bool is_verbose) {
     constexpr auto start = "----part %zu start----\n";
     constexpr auto end = "-----part %zu end----\n";
+    std::array<char, 64> buf{};
+    auto part = [&buf](const char *format, size_t n) {
+        auto len = snprintf(buf.data(), buf.size(), format, n);
+        return std::string_view(buf.data(), std::min<size_t>(len, buf.size() - 1));
+    };
     if (is_verbose) {
-        verbose_print_count_ = 0;
-        fprintf(verbose_file_.get(), end, verbose_file_part_);
-        fflush(verbose_file_.get());
-        verbose_file_ = UniqueFile(env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_TRUE), "a");
+        verbose_file_->Write(part(end, verbose_file_part_));
+        auto file = std::make_shared<LogFile>(
+                env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_TRUE));
         verbose_file_part_++;
-        fprintf(verbose_file_.get(), start, verbose_file_part_);
-        fflush(verbose_file_.get());
+        verbose_print_count_ = file->Write(part(start, verbose_file_part_));
+        std::lock_guard lk(files_mutex_);
+        verbose_file_ = std::move(file);
     } else {
-        modules_print_count_ = 0;
-        fprintf(modules_file_.get(), end, modules_file_part_);
-        fflush(modules_file_.get());
-        modules_file_ = UniqueFile(env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_FALSE), "a");
+        modules_file_->Write(part(end, modules_file_part_));
+        auto file = std::make_shared<LogFile>(
+                env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_FALSE));
         modules_file_part_++;
-        fprintf(modules_file_.get(), start, modules_file_part_);
-        fflush(modules_file_.get());
+        modules_print_count_ = file->Write(part(start, modules_file_part_));
+        std::lock_guard lk(files_mutex_);
+        modules_file_ = std::move(file);
     }
 }
 
+std::pair<std::shared_ptr<LogFile>, std::shared_ptr<LogFile>> Logcat::Files() {
+    std::lock_guard lk(files_mutex_);
+    return {verbose_file_, modules_file_};
+}
+
 inline void Logcat::Log(std::string_view str) {
+    // also called from the watchdog, the bytes are left out of the counts
+    auto [verbose_file, modules_file] = Files();
     if (verbose_) {
-        fprintf(verbose_file_.get(), "%.*s", static_cast<int>(str.size()), str.data());
-        fflush(verbose_file_.get());
+        verbose_file->Write(str);
     }
-    fprintf(modules_file_.get(), "%.*s", static_cast<int>(str.size()), str.data());
-    fflush(modules_file_.get());
+    modules_file->Write(str);
 }
 
 void Logcat::OnCrash(int err) {
@@ -221,20 +320,20 @@ void Logcat::ProcessBuffer(struct log_msg *buf) {
     std::string_view tag(entry.tag, entry.tagLen);
     bool shortcut = false;
     if (tag == "LSPosed-Bridge"sv || tag == "XSharedPreferences"sv || tag == "LSPosedContext") [[unlikely]] {
-        modules_print_count_ += PrintLogLine(entry, modules_file_.get());
+        modules_print_count_ += modules_file_->Write(entry);
         shortcut = true;
     }
     if (verbose_ && (shortcut || buf->id() == log_id::LOG_ID_CRASH ||
                      entry.pid == my_pid_ || tag == "Magisk"sv || tag == "Dobby"sv ||
                      tag.starts_with("Riru"sv) || tag.starts_with("zygisk"sv) ||
                      tag == "LSPlant"sv || tag.starts_with("LSPosed"sv))) [[unlikely]] {
-        verbose_print_count_ += PrintLogLine(entry, verbose_file_.get());
+        verbose_print_count_ += verbose_file_->Write(entry);
     }
     if (entry.pid == my_pid_ && tag == "LSPosedLogcat"sv) [[unlikely]] {
         std::string_view msg(entry.message, entry.messageLen);
         if (msg == "!!start_verbose!!"sv) {
             verbose_ = true;
-            verbose_print_count_ += PrintLogLine(entry, verbose_file_.get());
+            verbose_print_count_ += verbose_file_->Write(entry);
         } else if (msg == "!!stop_verbose!!"sv) {
             verbose_ = false;
         } else if (msg == "!!refresh_modules!!"sv) {
@@ -286,6 +385,21 @@ void Logcat::EnsureLogWatchDog() {
     watch_dog.detach();
 }
 
+// reads block while the log is quiet, so stale blocks are flushed from here to bound their delay
+void Logcat::StartFlusher() {
+    std::thread flusher([this] {
+        while (true) {
+            std::this_thread::sleep_for(kLogFlushCheckInterval);
+            auto [verbose_file, modules_file] = Files();
+            auto now = std::chrono::steady_clock::now();
+            verbose_print_count_ += verbose_file->FlushIfStale(now);
+            modules_print_count_ += modules_file->FlushIfStale(now);
+        }
+    });
+    pthread_setname_np(flusher.native_handle(), "log-flusher");
+    flusher.detach();
+}
+
 void Logcat::Run() {
     constexpr size_t tail_after_crash = 10U;
     size_t tail = 0;
@@ -293,6 +407,7 @@ void Logcat::Run() {
     RefreshFd(false);
 
     EnsureLogWatchDog();
+    StartFlusher();
 
     while (true) {
         std::unique_ptr<logger_list, decltype(&android_logger_list_free)> logger_list{
@@ -14,6 +14,10 @@ public class ByteBufferDexClassLoader extends BaseDexClassLoader {
         super(dexFiles, librarySearchPath, parent);
     }
 
+    public ByteBufferDexClassLoader(String dexPath, String librarySearchPath, ClassLoader parent) {
+        super(dexPath, null, librarySearchPath, parent);
+    }
+
     public String getLdLibraryPath() {
         return super.getLdLibraryPath();
     }
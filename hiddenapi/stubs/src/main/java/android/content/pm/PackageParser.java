@@ -1,5 +1,7 @@
 package android.content.pm;
 
+import android.os.Bundle;
+
 import java.io.File;
 
 public class PackageParser {
@@ -9,6 +11,7 @@ public class PackageParser {
 
 	public final static class Package {
         public ApplicationInfo applicationInfo;
+        public Bundle mAppMetaData;
 	}
 
 	/** Before SDK21 */
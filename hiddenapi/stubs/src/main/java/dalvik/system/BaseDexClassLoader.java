@@ -1,5 +1,6 @@
 package dalvik.system;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 
 public class BaseDexClassLoader extends ClassLoader {
@@ -11,6 +12,10 @@ public class BaseDexClassLoader extends ClassLoader {
         throw new RuntimeException("Stub!");
     }
 
+    public BaseDexClassLoader(String dexPath, File optimizedDirectory, String librarySearchPath, ClassLoader parent) {
+        throw new RuntimeException("Stub!");
+    }
+
     public String getLdLibraryPath() {
         throw new RuntimeException("Stub!");
     }
@@ -29,8 +29,8 @@ import org.lsposed.lspd.BuildConfig;
 
 public class Main {
 
-    public static void forkCommon(boolean isSystem, String niceName, String appDir, IBinder binder) {
-        Startup.initXposed(isSystem, niceName, appDir, ILSPApplicationService.Stub.asInterface(binder));
+    public static void forkCommon(boolean isSystem, String niceName, String appDir, IBinder binder, boolean hookProfiler) {
+        Startup.initXposed(isSystem, niceName, appDir, ILSPApplicationService.Stub.asInterface(binder), hookProfiler);
         if ((niceName.equals(BuildConfig.MANAGER_INJECTED_PKG_NAME) || niceName.equals(BuildConfig.DEFAULT_MANAGER_PACKAGE_NAME))
                 && ParasiticManagerHooker.start()) {
             Utils.logI("Loaded manager, skipping next steps");
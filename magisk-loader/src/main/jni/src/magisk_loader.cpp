@@ -108,7 +108,7 @@ namespace lspd {
             // or we proxy the request from system server binder
             auto &&next_binder = application_binder ? application_binder : system_server_binder;
             const auto [dex_fd, size] = instance->RequestLSPDex(env, next_binder);
-            auto obfs_map = instance->RequestObfuscationMap(env, next_binder);
+            auto [obfs_map, hook_profiler] = instance->RequestObfuscationMap(env, next_binder);
             ConfigBridge::GetInstance()->obfuscation_map(std::move(obfs_map));
             LoadDex(env, PreloadedDex(dex_fd, size));
             close(dex_fd);
@@ -134,8 +134,9 @@ namespace lspd {
                 InitHooks(env);
                 SetupEntryClass(env);
                 FindAndCall(env, "forkCommon",
-                            "(ZLjava/lang/String;Ljava/lang/String;Landroid/os/IBinder;)V",
-                            JNI_TRUE, JNI_NewStringUTF(env, "system"), nullptr, application_binder);
+                            "(ZLjava/lang/String;Ljava/lang/String;Landroid/os/IBinder;Z)V",
+                            JNI_TRUE, JNI_NewStringUTF(env, "system"), nullptr, application_binder,
+                            hook_profiler ? JNI_TRUE : JNI_FALSE);
                 GetArt(true);
             } else {
                 LOGI("skipped system server");
@@ -206,7 +207,7 @@ namespace lspd {
                     },
             };
             auto [dex_fd, size] = instance->RequestLSPDex(env, binder);
-            auto obfs_map = instance->RequestObfuscationMap(env, binder);
+            auto [obfs_map, hook_profiler] = instance->RequestObfuscationMap(env, binder);
             ConfigBridge::GetInstance()->obfuscation_map(std::move(obfs_map));
             LoadDex(env, PreloadedDex(dex_fd, size));
             close(dex_fd);
@@ -215,8 +216,8 @@ namespace lspd {
             SetupEntryClass(env);
             LOGD("Done prepare");
             FindAndCall(env, "forkCommon",
-                        "(ZLjava/lang/String;Ljava/lang/String;Landroid/os/IBinder;)V",
-                        JNI_FALSE, nice_name, app_dir, binder);
+                        "(ZLjava/lang/String;Ljava/lang/String;Landroid/os/IBinder;Z)V",
+                        JNI_FALSE, nice_name, app_dir, binder, hook_profiler ? JNI_TRUE : JNI_FALSE);
             LOGD("injected xposed into {}", process_name.get());
             setAllowUnload(false);
             GetArt(true);
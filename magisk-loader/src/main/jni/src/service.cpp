@@ -332,7 +332,7 @@ namespace lspd {
         return {fd, size};
     }
 
-    std::map<std::string, std::string>
+    std::tuple<std::map<std::string, std::string>, bool>
     Service::RequestObfuscationMap(JNIEnv *env, const ScopedLocalRef<jobject> &binder) {
         std::map<std::string, std::string> ret;
         Wrapper wrapper{env, this};
@@ -340,7 +340,7 @@ namespace lspd {
 
         if (!res) {
             LOGE("Service::RequestObfuscationMap: transaction failed?");
-            return ret;
+            return {ret, false};
         }
         auto size = JNI_CallIntMethod(env, wrapper.reply, read_int_method_);
         if (!size || (size & 1) == 1) {
@@ -361,7 +361,8 @@ namespace lspd {
             LOGD("{} => {}", i.first, i.second);
         }
 #endif
+        bool hook_profiler = JNI_CallIntMethod(env, wrapper.reply, read_int_method_) != 0;
 
-        return ret;
+        return {ret, hook_profiler};
     }
 }  // namespace lspd
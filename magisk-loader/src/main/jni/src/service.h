@@ -86,7 +86,9 @@ namespace lspd {
 
         std::tuple<int, size_t> RequestLSPDex(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &binder);
 
-        std::map<std::string, std::string> RequestObfuscationMap(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &binder);
+        // the obfuscation map and whether the hook profiler is enabled
+        std::tuple<std::map<std::string, std::string>, bool>
+        RequestObfuscationMap(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &binder);
 
     private:
         static std::unique_ptr<Service> instance_;
@@ -0,0 +1,230 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the binary logs written by the daemon into the text format they used to be written
+ * in. Only complete blocks are decoded, so a log can be followed while it is being written.
+ * See LogFile in the daemon's logcat.cpp for the format.
+ */
+public class LogDecoder {
+    public static final int HEADER_SIZE = 8;
+    // "LSPL" read as a little endian int
+    private static final int MAGIC = 0x4c50534c;
+    private static final byte VERSION = 1;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    // blocks are flushed at 64k, anything much larger is garbage
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int RECORD_TEXT = 0;
+    private static final int RECORD_TAG = 1;
+    private static final int RECORD_ENTRY = 2;
+
+    private static final char[] PRIORITIES = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'F', 'S'};
+
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final DateTimeFormatter dateFormat;
+    private final ArrayList<String> tags = new ArrayList<>();
+    private final StringBuilder prefix = new StringBuilder();
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockSize = 0;
+    private int offset = 0;
+    // the formatted date of the last second seen
+    private long second = Long.MIN_VALUE;
+    private String date = null;
+    private long position = HEADER_SIZE;
+
+    /**
+     * @param zone the time zone dates are written in, which is not necessarily the default one of the
+     *             decoding process
+     */
+    public LogDecoder(FileChannel channel, ZoneId zone) {
+        this.channel = channel;
+        this.dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT).withZone(zone);
+    }
+
+    public static boolean isBinary(FileChannel channel) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) <= 0) return false;
+        }
+        return header.getInt(0) == MAGIC && header.get(4) == VERSION;
+    }
+
+    /**
+     * Decode the blocks completed since the last call.
+     *
+     * @return false if the log is now shorter than what has been decoded, nothing is decoded then
+     */
+    public boolean decode(OutputStream out) throws IOException {
+        var size = channel.size();
+        if (size < position) return false;
+        while (size - position >= BLOCK_HEADER_SIZE) {
+            blockHeader.clear();
+            readFully(blockHeader, position);
+            var rawSize = blockHeader.getInt(0);
+            var compressedSize = blockHeader.getInt(4);
+            if (rawSize < 0 || rawSize > MAX_BLOCK_SIZE || compressedSize < 0 || compressedSize > MAX_BLOCK_SIZE) {
+                throw new IOException("Corrupted log block at " + position);
+            }
+            // still being written
+            if (size - position - BLOCK_HEADER_SIZE < compressedSize) break;
+            if (compressed.length < compressedSize) compressed = new byte[compressedSize];
+            readFully(ByteBuffer.wrap(compressed, 0, compressedSize), position + BLOCK_HEADER_SIZE);
+            inflate(compressedSize, rawSize);
+            decodeBlock(out);
+            position += BLOCK_HEADER_SIZE + compressedSize;
+        }
+        return true;
+    }
+
+    private void readFully(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, at);
+            if (read <= 0) throw new IOException("Unexpected end of log at " + at);
+            at += read;
+        }
+    }
+
+    private void inflate(int compressedSize, int rawSize) throws IOException {
+        if (block.length < rawSize) block = new byte[rawSize];
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedSize);
+        var inflated = 0;
+        try {
+            while (inflated < rawSize) {
+                var n = inflater.inflate(block, inflated, rawSize - inflated);
+                if (n == 0) break;
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted log block at " + position, e);
+        }
+        if (inflated != rawSize) throw new IOException("Corrupted log block at " + position);
+        blockSize = rawSize;
+        offset = 0;
+    }
+
+    private void decodeBlock(OutputStream out) throws IOException {
+        tags.clear();
+        long time = 0;
+        while (offset < blockSize) {
+            var kind = block[offset++];
+            switch (kind) {
+                case RECORD_TEXT: {
+                    var length = readLength();
+                    out.write(block, offset, length);
+                    offset += length;
+                    break;
+                }
+                case RECORD_TAG: {
+                    var length = readLength();
+                    tags.add(new String(block, offset, length, StandardCharsets.UTF_8));
+                    offset += length;
+                    break;
+                }
+                case RECORD_ENTRY: {
+                    var tag = (int) readVarint();
+                    if (tag < 0 || tag >= tags.size() || offset >= blockSize) throw corrupted();
+                    var priority = block[offset++];
+                    var delta = readVarint();
+                    time += (delta >>> 1) ^ -(delta & 1);
+                    var uid = (int) readVarint();
+                    var pid = (int) readVarint();
+                    var tid = (int) readVarint();
+                    var length = readLength();
+                    writePrefix(out, time, uid, pid, tid, priority, tags.get(tag));
+                    out.write(block, offset, length);
+                    out.write('\n');
+                    offset += length;
+                    break;
+                }
+                default:
+                    throw corrupted();
+            }
+        }
+    }
+
+    // [ 2023-01-01T00:00:00.000    10000:  1234:  1234 I/tag             ] message
+    private void writePrefix(OutputStream out, long time, int uid, int pid, int tid, byte priority, String tag) throws IOException {
+        var sec = Math.floorDiv(time, 1000);
+        if (sec != second) {
+            second = sec;
+            date = dateFormat.format(Instant.ofEpochSecond(sec));
+        }
+        prefix.setLength(0);
+        prefix.append("[ ").append(date).append('.');
+        pad(String.valueOf(Math.floorMod(time, 1000)), 3, '0');
+        prefix.append(' ');
+        pad(String.valueOf(uid), 8, ' ');
+        prefix.append(':');
+        pad(String.valueOf(pid), 6, ' ');
+        prefix.append(':');
+        pad(String.valueOf(tid), 6, ' ');
+        prefix.append(' ').append(priority >= 0 && priority < PRIORITIES.length ? PRIORITIES[priority] : '?');
+        prefix.append('/').append(tag);
+        for (int i = tag.length(); i < 15; i++) prefix.append(' ');
+        prefix.append(" ] ");
+        out.write(prefix.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void pad(String value, int width, char padding) {
+        for (int i = value.length(); i < width; i++) prefix.append(padding);
+        prefix.append(value);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (offset >= blockSize) throw corrupted();
+            var b = block[offset++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw corrupted();
+    }
+
+    private int readLength() throws IOException {
+        var length = readVarint();
+        if (length < 0 || length > blockSize - offset) throw corrupted();
+        return (int) length;
+    }
+
+    private IOException corrupted() {
+        return new IOException("Corrupted log record in block at " + position);
+    }
+}